@@ -24,9 +24,11 @@ package be.maximl.app;
 import be.maximl.data.*;
 import be.maximl.data.loaders.Loader;
 import be.maximl.data.loaders.imp.CIFLoader;
+import be.maximl.data.loaders.imp.NativeCIFLoader;
 import be.maximl.data.loaders.imp.TIFFLoader;
 import be.maximl.data.validators.ConnectedComponentsValidator;
 import be.maximl.data.validators.Validator;
+import be.maximl.feature.FeatureGate;
 import be.maximl.feature.FeatureVectorFactory;
 import be.maximl.output.CsvWriter;
 import be.maximl.output.FeatureVecWriter;
@@ -52,7 +54,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 
@@ -68,19 +69,91 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
   private static final String FILELIMIT_DESC = "Maximum number of files to process (-1 processes all files).";
   private static final String OUTPUTDIR_DESC = "Directory to which output may be written.";
   private static final String OUTPUTFILENAME_DESC = "Filename of file containing feature vectors.";
-  private static final String CHANNELS_DESC = "Channels to process (comma-separated).";
+  private static final String CHANNELS_DESC = "Channels to process (comma-separated), unless the YAML config lists the channels.";
   private static final String EXTENSIONS_DESC = "Extensions to scan for (comma-separated).";
   private static final String POOLSIZE_DESC = "Specify the amount of executors used for feature computation. Default is number of processors.";
+  private static final String VALIDATORPOOLSIZE_DESC = "Specify the amount of threads used for decoding and validating masks. Default is a quarter of the number of processors.";
+  private static final String OPENFILES_DESC = "Number of input files that are read at the same time.";
+  private static final String MAXREADERS_DESC = "Maximum number of open file readers over all input files, at least the number of stripes (-1 for no limit).";
+  private static final String STRIPES_DESC = "Number of stripes each input file is split into, each read with its own readers.";
+  private static final String QUEUECAPACITY_DESC = "Maximum number of images or vectors waiting between two processing stages.";
   private static final String FEATURESET_DESC = "Specify which featureset to compute.";
   private static final String YAMLCONFIG_DESC = ".yml config file containing input files and features to compute.";
+  private static final String PRINTPLAN_DESC = "Log the intermediates and features computed for each channel before starting.";
+
+  /**
+   * Features and mask of one channel in a YAML-file.
+   */
+  static class ChannelConfig {
+    private List<String> features = Collections.emptyList();
+    private Long mask;
+
+    public List<String> getFeatures() {
+      return features;
+    }
+
+    public void setFeatures(List<String> features) {
+      this.features = features;
+    }
+
+    public Long getMask() {
+      return mask;
+    }
+
+    public void setMask(Long mask) {
+      this.mask = mask;
+    }
+  }
 
   /**
    * Contains configuration loaded from a YAML-file.
+   *
+   * Either features lists the features that are computed on every channel passed on the command line,
+   * or channels maps each channel to its own features and, for masked images, the channel whose mask
+   * it uses:
+   * <pre>
+   * channels:
+   *   0:
+   *     features: [size, mean, stdDev]
+   *   5:
+   *     features: [haralickContrast, zernikeMagnitude]
+   *     mask: 0
+   * colocalization:
+   *   - [5, 11]
+   * </pre>
+   * colocalization lists the channel pairs whose Pearson, Manders and overlap coefficients are computed.
    */
   static class Config {
     private List<File> files;
     private List<String> features = Collections.emptyList();
+    private Map<Long, ChannelConfig> channels;
     private String loader;
+    private FeatureGate gate;
+    private List<List<Long>> colocalization = Collections.emptyList();
+
+    public Map<Long, ChannelConfig> getChannels() {
+      return channels;
+    }
+
+    public void setChannels(Map<Long, ChannelConfig> channels) {
+      this.channels = channels;
+    }
+
+    public FeatureGate getGate() {
+      return gate;
+    }
+
+    public void setGate(FeatureGate gate) {
+      this.gate = gate;
+    }
+
+    public List<List<Long>> getColocalization() {
+      return colocalization;
+    }
+
+    public void setColocalization(List<List<Long>> colocalization) {
+      this.colocalization = colocalization;
+    }
 
     public String getLoader() {
       return loader;
@@ -119,7 +192,7 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
   @Parameter
   private SCIFIO scifio;
 
-  @Parameter(label="Channels", description=FeatureApp.CHANNELS_DESC, persist = false)
+  @Parameter(label="Channels", description=FeatureApp.CHANNELS_DESC, required = false, persist = false)
   private String channels;
 
   @Parameter(label="Input directory", description = FeatureApp.INPUTDIR_DESC, required = false, persist = false)
@@ -143,12 +216,30 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
   @Parameter(label="Executor pool size", description = FeatureApp.POOLSIZE_DESC, required = false, persist = false)
   private int executorPoolSize= Runtime.getRuntime().availableProcessors();
 
+  @Parameter(label="Validator pool size", description = FeatureApp.VALIDATORPOOLSIZE_DESC, required = false, persist = false)
+  private int validatorPoolSize = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+  @Parameter(label="Open files", description = FeatureApp.OPENFILES_DESC, required = false, persist = false)
+  private int openFiles = 1;
+
+  @Parameter(label="Max readers", description = FeatureApp.MAXREADERS_DESC, required = false, persist = false)
+  private int maxReaders = -1;
+
+  @Parameter(label="Stripes per file", description = FeatureApp.STRIPES_DESC, required = false, persist = false)
+  private int stripes = 1;
+
+  @Parameter(label="Queue capacity", description = FeatureApp.QUEUECAPACITY_DESC, required = false, persist = false)
+  private int queueCapacity = 256;
+
   @Parameter(label="Feature set", description = FeatureApp.FEATURESET_DESC, required = false, persist = false)
   private String featureSet = null;
 
   @Parameter(label="YAML config", description = FeatureApp.YAMLCONFIG_DESC, required = false, persist = false)
   private File yamlConfig = null;
 
+  @Parameter(label="Print feature plan", description = FeatureApp.PRINTPLAN_DESC, required = false, persist = false)
+  private boolean printPlan = false;
+
   /**
    * Orchestrates the entire feature computation process from reading in parameters/configuration to
    * handling the lifecycle of all processing threads.
@@ -158,8 +249,8 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
    *     <li>setting up a <a href="#{@link}>{@link FileLister} to iterate over the input files,</a></li>
    *     <li>determining which features to compute and setting up a <a href="#{@link}">{@link FeatureVectorFactory}</a>,</li>
    *     <li>setting up a <a href="#{@link}>{@link Loader} to iterate over all images,</a></li>
-   *     <li>starting threads for submitting tasks to the factory and writing the output, and
-   *     instantiating a <a href="#{@link}">{@link CompletionService}</a> for handling the feature computation tasks,</li>
+   *     <li>starting the load, validate, compute and write stages, connected by bounded
+   *     <a href="#{@link}">{@link Handoff}</a>s,</li>
    *     <li>and, finally, handling the teardown of all threads.</li>
    * </ol>
    */
@@ -172,6 +263,9 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
     */
     FileLister lister;
     List<String> features;
+    Map<Long, ChannelConfig> channelConfigs = null;
+    FeatureGate gate = null;
+    List<List<Long>> colocalization = Collections.emptyList();
     String loaderType = "";
     if (yamlConfig != null) {
       // read config from yaml
@@ -183,6 +277,9 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
         log.info(config.files);
         features = config.features;
         loaderType = config.loader;
+        gate = config.gate;
+        colocalization = config.colocalization;
+        channelConfigs = config.channels;
       } catch (IOException e) {
         e.printStackTrace();
         return;
@@ -209,76 +306,163 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
       }
     }
 
-    boolean computeAllFeatures = features.size() == 0;
-    int queueCapacity = 50000;
-    BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
-    ExecutorService executor = new ThreadPoolExecutor(executorPoolSize, executorPoolSize, 1000, TimeUnit.MILLISECONDS, queue);
-    CompletionService<FeatureVectorFactory.FeatureVector> completionService = new ExecutorCompletionService<>(executor);
-    AtomicInteger counter = new AtomicInteger(0);
-    List<Long> longChannels = Arrays.stream(channels.split(",")).map(Long::parseLong).collect(Collectors.toList());
+    List<Long> longChannels;
+    Map<Long, List<String>> channelFeatures = new LinkedHashMap<>();
+    Map<Long, Long> maskChannels = new HashMap<>();
+    if (channelConfigs != null) {
+      // channels from the YAML-file, mask and colocalization channels are loaded as well
+      SortedSet<Long> loaded = new TreeSet<>(channelConfigs.keySet());
+      colocalization.forEach(loaded::addAll);
+      for (Map.Entry<Long, ChannelConfig> entry : channelConfigs.entrySet()) {
+        channelFeatures.put(entry.getKey(), new ArrayList<>(entry.getValue().features));
+        if (entry.getValue().mask != null) {
+          maskChannels.put(entry.getKey(), entry.getValue().mask);
+          loaded.add(entry.getValue().mask);
+        }
+      }
+      longChannels = new ArrayList<>(loaded);
+    } else {
+      if (channels == null) {
+        log.error("Specify the channels to process, on the command line or per channel in the YAML config");
+        return;
+      }
+      longChannels = Arrays.stream(channels.split(",")).map(Long::parseLong).collect(Collectors.toList());
+      for (Long channel : longChannels) {
+        channelFeatures.put(channel, new ArrayList<>(features));
+      }
+    }
+
+    if (gate != null) {
+      // the features the gate reads are always computed, channels with an empty list compute all features
+      for (FeatureGate.Condition condition : gate.getConditions()) {
+        String name = condition.getFeature().split("-")[0];
+        for (Map.Entry<Long, List<String>> entry : channelFeatures.entrySet()) {
+          List<String> list = entry.getValue();
+          boolean applies = condition.getChannel() == null || condition.getChannel().equals(entry.getKey());
+          if (applies && !list.isEmpty() && !list.contains(name))
+            list.add(name);
+        }
+      }
+    }
 
-    FeatureVectorFactory<T> factory = new FeatureVectorFactory<>(opService, log, features, computeAllFeatures);
+    FeatureVectorFactory<T> factory;
+    try {
+      factory = new FeatureVectorFactory<>(opService, log, channelFeatures, longChannels);
+      factory.setMaskChannels(maskChannels);
+      factory.setColocalization(colocalization);
+    } catch (IllegalArgumentException e) {
+      log.error(e.getMessage());
+      return;
+    }
     Validator<T> validator = new ConnectedComponentsValidator<>(opService);
 
     Loader<T> loader;
-    switch (loaderType) {
-      case "tif":
-        loader = new TIFFLoader<>(lister.getFiles().iterator(), longChannels, log, scifio);
-        break;
-      default:
-        loader = new CIFLoader<>(log, imageLimit, longChannels, lister.getFiles().iterator(), scifio, validator);
-        break;
+    try {
+      switch (loaderType) {
+        case "tif":
+          loader = new TIFFLoader<>(lister.getFiles().iterator(), longChannels, log, scifio, openFiles, maxReaders);
+          break;
+        case "cif-native":
+          loader = new NativeCIFLoader<>(log, imageLimit, longChannels, lister.getFiles().iterator(), scifio, openFiles, maxReaders, stripes);
+          break;
+        default:
+          loader = new CIFLoader<>(log, imageLimit, longChannels, lister.getFiles().iterator(), scifio, openFiles, maxReaders, stripes);
+          break;
+      }
+    } catch (IllegalArgumentException e) {
+      log.error(e.getMessage());
+      return;
     }
-    TaskProducer<T> taskProducer = new TaskProducer<>(loader, completionService, factory, counter);
+    // decoded planes and masks go back to the pool once their feature vector is computed, at most one
+    // handoff's worth of buffers is kept per image size
+    ImgPool imgPool = new ImgPool(queueCapacity);
+    loader.setImgPool(imgPool);
 
-    final long startTime = System.currentTimeMillis();
-    taskProducer.start();
+    boolean masked = loader.isMasked();
+    try {
+      factory.setGate(gate, masked);
+    } catch (IllegalArgumentException e) {
+      log.error(e.getMessage());
+      return;
+    }
+    if (printPlan) {
+      log.info("Feature plan:" + System.lineSeparator() + factory.describePlans(masked));
+    }
+
+    /*
+     * Images flow through four stages, load -> validate -> compute -> write, connected by bounded
+     * handoffs. A full handoff blocks the stage feeding it, and every stage closes its output handoff
+     * once its input is exhausted, so the writer finishes exactly when all images have been handled.
+     * A stage that fails, or the writer, cancels its input handoff instead, which stops the stages before
+     * it, so a failure ends the run instead of hanging it.
+     * The loader only emits handles: masks are decoded by the validate stage and planes by the
+     * compute stage, so decoding scales with the stage parallelism.
+     */
+    // images dropped by a cancelled handoff still return their readers and buffers
+    Handoff<Image<T>> loaded = new Handoff<>(queueCapacity, Image::release);
+    Handoff<Image<T>> validated = new Handoff<>(queueCapacity, Image::release);
+    Handoff<FeatureVectorFactory.FeatureVector> computed = new Handoff<>(queueCapacity);
+
+    ImageSource<T> source = new ImageSource<>(loader, loaded, log);
+    Stage<Image<T>, Image<T>> validateStage = new Stage<>("validate", masked ? validatorPoolSize : 1, loaded, validated,
+        image -> {
+          boolean valid = false;
+          try {
+            valid = !masked || validator.validate(image);
+          } finally {
+            if (!valid)
+              image.release();
+          }
+          return valid ? image : null;
+        }, log);
+    Stage<Image<T>, FeatureVectorFactory.FeatureVector> computeStage = new Stage<>("compute", executorPoolSize, validated, computed,
+        image -> {
+          try {
+            return factory.computeVector(image, masked);
+          } finally {
+            image.release();
+          }
+        }, log);
 
     File output = new File(outputDirectory, outputFilename);
     FeatureVecWriter writer;
     switch (FilenameUtils.getExtension(outputFilename)) {
       case "sqlite3":
-        writer = new SQLiteWriter(log, statusService, completionService, output.getPath());
+        writer = new SQLiteWriter(log, statusService, computed, factory.getSchema(), output.getPath());
         break;
       case "csv":
-        writer = new CsvWriter(log, statusService, completionService, output.getPath());
+        writer = new CsvWriter(log, statusService, computed, factory.getSchema(), output.getPath());
         break;
       default:
         log.error("Output extension isn't recognized");
         return;
     }
+
+    final long startTime = System.currentTimeMillis();
+    source.start();
+    validateStage.start();
+    computeStage.start();
     writer.start();
 
     try {
-      taskProducer.join(); // wait for the producer to put all images on the task queue
-      int producerCount = counter.get();
-      log.info("PRODUCER COUNT " + producerCount);
+      source.join();
+      log.info("PRODUCER COUNT " + source.getCount());
+      log.info("Loading finished after " + (System.currentTimeMillis() - startTime)/1000. + "s");
+
+      validateStage.join();
       log.info("Validator flagged " + validator.getInvalidCount() + " images");
 
-      long endTime = System.currentTimeMillis();
-      double execTime = (endTime - startTime)/1000.;
-      log.info("Task producer finished after " + execTime + "s");
-
-      if (writer.isAlive()) {
-        /*
-         * Ask the writer continuously how many vectors it has written.
-         * Once it has handled as many vectors as the producer has produced tasks
-         * the writer is interrupted.
-         */
-        synchronized (writer.getHandled()) {
-          while(producerCount != writer.getHandled().get()) {
-            writer.getHandled().wait();
-          }
-        }
-        writer.interrupt();
-        writer.join();
-      }
-      log.info("WRITER COUNT " + writer.getHandled());
-      endTime = System.currentTimeMillis();
-      execTime = (endTime - startTime)/1000.;
-      log.info("CSV Writer finished after " + execTime + "s");
+      computeStage.join();
+      int rejected = factory.getRejectedCount();
+      if (gate != null)
+        log.info("Gate rejected " + rejected + " images");
+      int failed = computeStage.getDropped() - (gate != null && gate.isDropping() ? rejected : 0);
+      if (failed > 0)
+        log.warn("Failed to compute " + failed + " feature vectors");
 
-      executor.shutdown();
+      writer.join();
+      log.info("WRITER COUNT " + writer.getHandled());
+      log.info("Writer finished after " + (System.currentTimeMillis() - startTime)/1000. + "s");
     } catch (InterruptedException e) {
       log.error("Interrupted while shutting down");
       e.printStackTrace();
@@ -298,11 +482,17 @@ public class FeatureApp<T extends NativeType<T> & RealType<T>> implements Comman
     options.addOption("fl", "fileLimit", true, FeatureApp.FILELIMIT_DESC);
     options.addOption("h", "help", false, "Print usage.");
     options.addOption("ex", "executorPoolSize", true, FeatureApp.POOLSIZE_DESC);
+    options.addOption("vx", "validatorPoolSize", true, FeatureApp.VALIDATORPOOLSIZE_DESC);
+    options.addOption("q", "queueCapacity", true, FeatureApp.QUEUECAPACITY_DESC);
+    options.addOption("of", "openFiles", true, FeatureApp.OPENFILES_DESC);
+    options.addOption("mr", "maxReaders", true, FeatureApp.MAXREADERS_DESC);
+    options.addOption("s", "stripes", true, FeatureApp.STRIPES_DESC);
     options.addOption("fs", "featureSet", true, FeatureApp.FEATURESET_DESC);
     options.addOption("e", "extensions", true, FeatureApp.EXTENSIONS_DESC);
     options.addOption("y", "yamlConfig", true, FeatureApp.YAMLCONFIG_DESC);
     options.addOption("i", "inputDirectory", true, FeatureApp.INPUTDIR_DESC);
-    options.addRequiredOption("c", "channels", true, FeatureApp.CHANNELS_DESC);
+    options.addOption("pp", "printPlan", true, FeatureApp.PRINTPLAN_DESC);
+    options.addOption("c", "channels", true, FeatureApp.CHANNELS_DESC);
 
     HelpFormatter formatter = new HelpFormatter();
 
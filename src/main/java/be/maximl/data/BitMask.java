@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Two-dimensional mask with one bit per pixel.
+ *
+ * Pixels are stored row by row in 64-bit words, pixel (x, y) is bit y * width + x. Counting, bounding box and
+ * iteration work on whole words at a time, which makes them much cheaper than going over a NativeBoolType
+ * image pixel by pixel.
+ */
+public class BitMask {
+
+    private final int width;
+    private final int height;
+    private final long[] words;
+
+    public BitMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.words = new long[(width * height + 63) >>> 6];
+    }
+
+    /**
+     * Packs a two-dimensional boolean image, e.g. one channel slice of a mask.
+     *
+     * @param mask mask to pack
+     * @return packed copy of the mask
+     */
+    public static <B extends BooleanType<B>> BitMask of(RandomAccessibleInterval<B> mask) {
+        BitMask res = new BitMask((int) mask.dimension(0), (int) mask.dimension(1));
+        Cursor<B> cursor = Views.flatIterable(mask).cursor();
+        long[] words = res.words;
+        int i = 0;
+        while (cursor.hasNext()) {
+            if (cursor.next().get())
+                words[i >>> 6] |= 1L << i;
+            i++;
+        }
+        return res;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean get(int x, int y) {
+        int i = y * width + x;
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @param i index of the pixel in a flat iteration over the mask
+     * @return whether the pixel is foreground
+     */
+    public boolean get(int i) {
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public void set(int x, int y) {
+        int i = y * width + x;
+        words[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * @return number of foreground pixels
+     */
+    public int size() {
+        int res = 0;
+        for (long word : words) {
+            res += Long.bitCount(word);
+        }
+        return res;
+    }
+
+    /**
+     * @return whether there are no foreground pixels
+     */
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Index of the next foreground pixel, in the same order as a flat iteration over the mask. Iterate over
+     * the foreground with {@code for (int i = m.nextSet(0); i >= 0; i = m.nextSet(i + 1))}, the pixel
+     * coordinates are {@code i % width} and {@code i / width}.
+     *
+     * @param from index to start searching at
+     * @return index of the first foreground pixel at or after from, or -1 if there is none
+     */
+    public int nextSet(int from) {
+        int w = from >>> 6;
+        if (w >= words.length)
+            return -1;
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return minimum x, minimum y, maximum x and maximum y of the foreground, inclusive, or null if the
+     * mask is empty
+     */
+    public int[] boundingBox() {
+        int minX = width, minY = -1, maxX = -1, maxY = -1;
+        for (int i = nextSet(0); i >= 0; i = nextSet(i + 1)) {
+            int y = i / width;
+            int x = i - y * width;
+            if (minY < 0)
+                minY = y;
+            maxY = y;
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+        }
+        return minY < 0 ? null : new int[]{minX, minY, maxX, maxY};
+    }
+
+    /**
+     * Counts the connected components of the foreground.
+     *
+     * @param connectivity 4 or 8
+     * @return number of connected components
+     */
+    public int countComponents(int connectivity) {
+        return new Labeler().count(this, connectivity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Scanline flood fill that counts connected components. A labeler keeps its buffers between calls, so
+     * reusing one per thread avoids allocating for every mask.
+     */
+    public static class Labeler {
+        private long[] visited = new long[0];
+        private int[] stack = new int[64];
+        private int top;
+
+        /**
+         * @param mask mask to label
+         * @param connectivity 4 or 8
+         * @param limit count at which to stop, e.g. 2 to only tell whether there is more than one component
+         * @return number of connected components, or limit if there are at least that many
+         */
+        public int count(BitMask mask, int connectivity, int limit) {
+            long[] words = mask.words;
+            if (visited.length < words.length)
+                visited = new long[words.length];
+            else
+                Arrays.fill(visited, 0, words.length, 0L);
+
+            // a span on the next row touches the filled span diagonally with 8-connectivity
+            int reach = connectivity == 8 ? 1 : 0;
+            int width = mask.width;
+            int height = mask.height;
+            int count = 0;
+
+            for (int seed = mask.nextSet(0); seed >= 0; seed = mask.nextSet(seed + 1)) {
+                if (isSet(visited, seed))
+                    continue;
+                if (++count >= limit)
+                    return count;
+
+                top = 0;
+                push(seed);
+                while (top > 0) {
+                    int i = stack[--top];
+                    if (isSet(visited, i))
+                        continue;
+
+                    int y = i / width;
+                    int rowStart = y * width;
+                    int left = i - rowStart;
+                    int right = left;
+                    while (left > 0 && isSet(words, rowStart + left - 1) && !isSet(visited, rowStart + left - 1))
+                        left--;
+                    while (right < width - 1 && isSet(words, rowStart + right + 1) && !isSet(visited, rowStart + right + 1))
+                        right++;
+                    for (int x = left; x <= right; x++)
+                        visited[(rowStart + x) >>> 6] |= 1L << (rowStart + x);
+
+                    int from = Math.max(0, left - reach);
+                    int to = Math.min(width - 1, right + reach);
+                    if (y > 0)
+                        pushRuns(words, rowStart - width, from, to);
+                    if (y < height - 1)
+                        pushRuns(words, rowStart + width, from, to);
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * Pushes one pixel of every unvisited foreground run between from and to on a row.
+         */
+        private void pushRuns(long[] words, int rowStart, int from, int to) {
+            boolean inRun = false;
+            for (int x = from; x <= to; x++) {
+                int i = rowStart + x;
+                boolean open = isSet(words, i) && !isSet(visited, i);
+                if (open && !inRun)
+                    push(i);
+                inRun = open;
+            }
+        }
+
+        private void push(int i) {
+            if (top == stack.length)
+                stack = Arrays.copyOf(stack, top * 2);
+            stack[top++] = i;
+        }
+
+        private static boolean isSet(long[] words, int i) {
+            return (words[i >>> 6] & (1L << i)) != 0;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue between two stages of the pipeline.
+ *
+ * Producers block while the queue is full, which propagates backpressure upstream. Once the producing
+ * stage is done it closes the handoff, after which every consumer receives null from {@link #take()}
+ * as soon as all preceding elements have been taken.
+ *
+ * If the consuming stage fails it cancels the handoff instead: pending elements are discarded, producers
+ * no longer block and drop what they put, and consumers receive null. A producer that sees the cancellation
+ * cancels its own input, so a failure further down stops the whole pipeline instead of hanging it. Every
+ * discarded element is passed to the discard callback, so elements that hold resources can release them.
+ *
+ * @param <E> element type
+ */
+public class Handoff<E> {
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final Consumer<? super E> discard;
+    private volatile boolean cancelled = false;
+
+    public Handoff(int capacity) {
+        this(capacity, element -> {});
+    }
+
+    /**
+     * @param discard called for every element that is dropped because the handoff is cancelled
+     */
+    public Handoff(int capacity, Consumer<? super E> discard) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        this.discard = discard;
+    }
+
+    /**
+     * Adds an element, waiting for space if the queue is full. The element is dropped if the handoff is or
+     * gets cancelled meanwhile.
+     *
+     * @param element element to add, not null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(E element) throws InterruptedException {
+        // wait in slices, a cancellation doesn't wake up a blocked producer
+        while (!cancelled) {
+            if (queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                // a cancellation may have emptied the queue just before the element got in
+                if (cancelled)
+                    drain();
+                return;
+            }
+        }
+        discard.accept(element);
+    }
+
+    /**
+     * Retrieves the next element, waiting if none is available.
+     *
+     * @return the next element, or null if the handoff is closed and empty
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    public E take() throws InterruptedException {
+        Object element = queue.take();
+        if (element == END || cancelled) {
+            if (element != END)
+                discard.accept((E) element);
+            // leave the marker in place for the other consumers
+            if (cancelled)
+                queue.offer(END);
+            else
+                queue.put(END);
+            return null;
+        }
+        return (E) element;
+    }
+
+    /**
+     * Signals that no more elements will be added.
+     *
+     * @throws InterruptedException if interrupted while waiting for space for the end marker
+     */
+    public void close() throws InterruptedException {
+        if (!cancelled)
+            queue.put(END);
+    }
+
+    /**
+     * Discards all pending elements and makes producers discard new ones, because they will never be taken.
+     * Consumers waiting for an element receive null.
+     */
+    public void cancel() {
+        cancelled = true;
+        drain();
+    }
+
+    /**
+     * Discards all pending elements and leaves the end marker for waiting consumers.
+     */
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        List<Object> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (Object element : pending) {
+            if (element != END)
+                discard.accept((E) element);
+        }
+        queue.offer(END);
+    }
+
+    /**
+     * @return whether the consumer of this handoff has stopped
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -26,9 +26,21 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.NativeBoolType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
 import java.util.List;
-
+import java.util.function.Supplier;
+
+/**
+ * Handle on one image of an input file.
+ *
+ * Loaders create handles cheaply: planes and masks are only decoded when they are first requested, which
+ * happens on the thread that processes the image. Once an image has been handled, {@link #release()} drops
+ * the decoded data, or returns its buffers to an {@link ImgPool}, and tells the loader that the image no
+ * longer needs its file.
+ *
+ * @param <T> image data type
+ */
 public class Image<T extends NativeType<T> & RealType<T>> {
 
   final public static int CHANNELDIM = 2;
@@ -40,6 +52,11 @@ public class Image<T extends NativeType<T> & RealType<T>> {
   private List<Long> channels;
   private Img<T> img;
   private Img<NativeBoolType> maskImg;
+  private BitMask[] bitMasks;
+  private Supplier<Img<T>> planeSupplier;
+  private Supplier<Img<NativeBoolType>> maskSupplier;
+  private Runnable onRelease;
+  private ImgPool pool;
   private long[] dims;
   final private int id;
 
@@ -51,12 +68,56 @@ public class Image<T extends NativeType<T> & RealType<T>> {
     return id;
   }
 
-  public void setPlanes(Img<T> planes) {
-    img = planes;
+  /**
+   * @param planes decodes the planes of the image, called at most once
+   */
+  public void setPlanes(Supplier<Img<T>> planes) {
+    planeSupplier = planes;
+    img = null;
+  }
+
+  /**
+   * @param masks decodes the masks of the image, called at most once
+   */
+  public void setMasks(Supplier<Img<NativeBoolType>> masks) {
+    maskSupplier = masks;
+    maskImg = null;
+    bitMasks = null;
+  }
+
+  /**
+   * @param onRelease called once when the image is released
+   */
+  public void setOnRelease(Runnable onRelease) {
+    this.onRelease = onRelease;
+  }
+
+  /**
+   * @param pool pool that receives the decoded planes and masks when the image is released
+   */
+  public void setPool(ImgPool pool) {
+    this.pool = pool;
   }
 
-  public void setMasks(Img<NativeBoolType> masks) {
-    maskImg = masks;
+  /**
+   * Drops the decoded planes and masks, or hands them back to the pool if there is one. The image can't be
+   * used afterwards.
+   */
+  public void release() {
+    if (pool != null) {
+      pool.recycle(img);
+      pool.recycle(maskImg);
+      pool = null;
+    }
+    img = null;
+    maskImg = null;
+    bitMasks = null;
+    planeSupplier = null;
+    maskSupplier = null;
+    if (onRelease != null) {
+      onRelease.run();
+      onRelease = null;
+    }
   }
 
   public void setAxesLengths(long[] planeLengths) {
@@ -68,15 +129,41 @@ public class Image<T extends NativeType<T> & RealType<T>> {
   }
 
   public Img<T> getImg() {
+    if (img == null && planeSupplier != null) {
+      img = planeSupplier.get();
+      planeSupplier = null;
+      if (dims == null)
+        dims = img.dimensionsAsLongArray();
+    }
     return img;
   }
 
   public Img<NativeBoolType> getMaskImg() {
+    if (maskImg == null && maskSupplier != null) {
+      maskImg = maskSupplier.get();
+      maskSupplier = null;
+    }
     return maskImg;
   }
 
+  /**
+   * @param channel position of the channel in the list of loaded channels
+   * @return bit-packed mask of the channel, packed on first request, or null if the image has no masks
+   */
+  public BitMask getMask(int channel) {
+    if (bitMasks == null) {
+      Img<NativeBoolType> masks = getMaskImg();
+      if (masks == null)
+        return null;
+      bitMasks = new BitMask[(int) masks.dimension(CHANNELDIM)];
+    }
+    if (bitMasks[channel] == null)
+      bitMasks[channel] = BitMask.of(Views.hyperSlice(getMaskImg(), CHANNELDIM, channel));
+    return bitMasks[channel];
+  }
+
   public ImgFactory<T> getFactory() {
-    return img.factory();
+    return getImg().factory();
   }
 
   /**
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data;
+
+import be.maximl.data.loaders.Loader;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import org.scijava.log.LogService;
+
+/**
+ * First stage of the pipeline: reads all images from a loader into a handoff and closes it afterwards, also
+ * if the loader fails. Loading stops early if the next stage cancels the handoff. Loaders aren't
+ * thread-safe, so this stage always runs on a single thread.
+ *
+ * @param <T> image data type
+ */
+public class ImageSource<T extends NativeType<T> & RealType<T>> extends Thread {
+
+    final private Loader<T> loader;
+    final private Handoff<Image<T>> output;
+    final private LogService log;
+    private int count = 0;
+
+    public ImageSource(Loader<T> loader, Handoff<Image<T>> output, LogService log) {
+        super("load");
+        this.loader = loader;
+        this.output = output;
+        this.log = log;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!output.isCancelled() && loader.hasNext()) {
+                Image<T> image = loader.next();
+                if (image != null) {
+                    output.put(image);
+                    count++;
+                }
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while loading images");
+        } catch (RuntimeException e) {
+            log.error("Could not load images, stopping after " + count + " images", e);
+        } finally {
+            try {
+                output.close();
+            } catch (InterruptedException e) {
+                log.error("Interrupted while closing the loaded images");
+            }
+        }
+    }
+
+    /**
+     * @return number of images loaded, only valid once the thread has finished
+     */
+    public int getCount() {
+        return count;
+    }
+}
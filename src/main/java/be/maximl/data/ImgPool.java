@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of array images, so the pixel buffers of handled images are reused instead of left to the garbage
+ * collector.
+ *
+ * Images are pooled by type and dimensions. Recycled images keep their old pixel values, they are meant for
+ * code that overwrites every pixel, such as the readers of the loaders. Every key holds at most maxIdle
+ * images, surplus images are dropped.
+ */
+public class ImgPool {
+
+    private static class Key {
+        private final Class<?> type;
+        private final long[] dims;
+
+        Key(Class<?> type, long[] dims) {
+            this.type = type;
+            this.dims = dims;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return type == key.type && Arrays.equals(dims, key.dims);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(type) + Arrays.hashCode(dims);
+        }
+    }
+
+    /**
+     * Array image factory that takes its images from a pool.
+     */
+    public static class PooledFactory<T extends NativeType<T>> extends ArrayImgFactory<T> {
+        private final ImgPool pool;
+
+        private PooledFactory(ImgPool pool, T type) {
+            super(type);
+            this.pool = pool;
+        }
+
+        @Override
+        public ArrayImg<T, ?> create(long... dims) {
+            return pool.acquire(type(), dims);
+        }
+
+        @Override
+        @Deprecated
+        public ArrayImg<T, ?> create(long[] dims, T type) {
+            // SCIFIO's ImgOpener still creates its images through this method
+            return pool.acquire(type, dims);
+        }
+    }
+
+    private final int maxIdle;
+    private final Map<Key, BlockingQueue<ArrayImg<?, ?>>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxIdle maximum number of pooled images per type and dimensions
+     */
+    public ImgPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @param type type of the images
+     * @return factory that creates images of the given type from this pool
+     */
+    public <T extends NativeType<T>> ImgFactory<T> factory(T type) {
+        return new PooledFactory<>(this, type);
+    }
+
+    /**
+     * Takes an image from the pool, or creates one if none is available. The pixel values are undefined.
+     *
+     * @param type type of the image
+     * @param dims dimensions of the image
+     * @return image
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends NativeType<T>> ArrayImg<T, ?> acquire(T type, long... dims) {
+        BlockingQueue<ArrayImg<?, ?>> queue = idle.get(new Key(type.getClass(), dims));
+        ArrayImg<?, ?> img = queue == null ? null : queue.poll();
+        if (img != null)
+            return (ArrayImg<T, ?>) img;
+        return new ArrayImgFactory<>(type).create(dims);
+    }
+
+    /**
+     * Hands an image back to the pool. The image must not be used afterwards. Images that don't wrap an
+     * array image are ignored.
+     *
+     * @param img image to recycle, may be null
+     */
+    public void recycle(Img<?> img) {
+        while (img instanceof ImgPlus)
+            img = ((ImgPlus<?>) img).getImg();
+        if (!(img instanceof ArrayImg))
+            return;
+
+        ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) img;
+        Key key = new Key(arrayImg.firstElement().getClass(), arrayImg.dimensionsAsLongArray());
+        idle.computeIfAbsent(key, k -> new ArrayBlockingQueue<>(maxIdle)).offer(arrayImg);
+    }
+}
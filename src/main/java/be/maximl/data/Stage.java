@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data;
+
+import org.scijava.log.LogService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A pipeline stage that transforms the elements of one handoff into those of the next with a fixed
+ * number of worker threads.
+ *
+ * Elements for which the function returns null are dropped. An exception thrown for one element is
+ * logged and only drops that element. An error ends the worker and cancels the input, as does a
+ * cancelled output, so the stages before this one stop as well. The output handoff is closed when the
+ * last worker has stopped, whatever the reason.
+ *
+ * @param <I> input element type
+ * @param <O> output element type
+ */
+public class Stage<I, O> {
+
+    private final String name;
+    private final Handoff<I> input;
+    private final Handoff<O> output;
+    private final Function<I, O> func;
+    private final LogService log;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger running;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    public Stage(String name, int parallelism, Handoff<I> input, Handoff<O> output, Function<I, O> func, LogService log) {
+        this.name = name;
+        this.input = input;
+        this.output = output;
+        this.func = func;
+        this.log = log;
+        this.running = new AtomicInteger(parallelism);
+
+        for (int i = 0; i < parallelism; i++) {
+            workers.add(new Thread(this::work, name + "-" + i));
+        }
+    }
+
+    private void work() {
+        try {
+            I element;
+            // an element taken just before the output is cancelled is still handled, its result is then
+            // discarded by the output
+            while (!output.isCancelled() && (element = input.take()) != null) {
+                O result = null;
+                try {
+                    result = func.apply(element);
+                } catch (RuntimeException e) {
+                    log.error("Exception in stage " + name, e);
+                }
+
+                if (result == null) {
+                    dropped.incrementAndGet();
+                } else {
+                    output.put(result);
+                    processed.incrementAndGet();
+                }
+            }
+            // nothing downstream takes the results anymore
+            if (output.isCancelled())
+                input.cancel();
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting in stage " + name);
+        } catch (Error e) {
+            log.error("Stage " + name + " failed, cancelling the stages before it", e);
+            input.cancel();
+            throw e;
+        } finally {
+            if (running.decrementAndGet() == 0) {
+                try {
+                    output.close();
+                } catch (InterruptedException e) {
+                    log.error("Interrupted while closing the output of stage " + name);
+                }
+            }
+        }
+    }
+
+    public void start() {
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * Waits until all workers have finished.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of elements passed on to the next stage
+     */
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return number of elements dropped by this stage
+     */
+    public int getDropped() {
+        return dropped.get();
+    }
+}
@@ -22,6 +22,7 @@
 package be.maximl.data.loaders;
 
 import be.maximl.data.Image;
+import be.maximl.data.ImgPool;
 import io.scif.FormatException;
 import io.scif.Reader;
 import io.scif.SCIFIO;
@@ -30,26 +31,41 @@ import io.scif.filters.ReaderFilter;
 import io.scif.img.IO;
 import io.scif.img.ImageRegion;
 import io.scif.img.Range;
-import io.scif.img.SCIFIOImgPlus;
-import net.imagej.ImageJ;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
-import net.imagej.ops.transform.hyperSliceView.IntervalHyperSliceView;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.Type;
+import net.imglib2.type.logic.NativeBoolType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.IntervalView;
-import org.scijava.io.location.FileLocation;
 import org.scijava.log.LogService;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.List;
-
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Iterates over all images in a list of files.
+ *
+ * The loader itself only reads metadata: it emits {@link Image} handles whose planes are decoded on
+ * first access, by whichever thread processes the image, with a reader borrowed from the {@link ReaderPool}
+ * of the image's file.
+ *
+ * Up to openFiles files are open at the same time. Their metadata is parsed concurrently in the background
+ * and their images are interleaved round-robin, so a single slow file doesn't stall the pipeline. An optional
+ * limit on the number of readers over all files bounds the file handles and metadata held in memory.
+ *
+ * Large files can additionally be split into stripes, consecutive ranges of images that each have their own
+ * reader pool and thus their own file handles. Stripes are interleaved like files, image ids are the same as
+ * when the file is read in one piece. With a limit on the number of readers, a file is only opened once a
+ * permit is available for each of its stripes, so every stripe can always open its first reader.
+ *
+ * @param <T> image data type
+ */
 public abstract class Loader<T extends NativeType<T> & RealType<T>> implements Iterator<Image<T>> {
 
     /**
@@ -70,123 +86,395 @@ public abstract class Loader<T extends NativeType<T> & RealType<T>> implements I
         }
     }
 
+    /**
+     * Reader permits acquired for the file being opened on the current thread, handed to its pools.
+     */
+    private static class Reservation {
+        private int remaining;
+        private final List<ReaderPool> pools = new ArrayList<>();
+
+        private Reservation(int remaining) {
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * A range of images of one open file, together with the pool of readers for that range.
+     */
+    protected class Shard {
+        final protected ReaderPool pool;
+        final protected String directory;
+        final protected String filename;
+        final protected String extension;
+        final protected int start;
+        final protected int end;
+        protected Iterator<Supplier<Img<T>>> planes;
+        protected Iterator<Supplier<Img<NativeBoolType>>> masks;
+        protected int nextId;
+
+        protected Shard(ReaderPool pool, String formatName, int start, int end) {
+            File file = pool.getFile();
+            this.pool = pool;
+            // same values as the source location of a SCIFIO reader of the file
+            this.directory = file.toURI().getPath();
+            this.filename = file.getName();
+            this.extension = formatName;
+            this.start = start;
+            this.end = end;
+            this.nextId = getId(start);
+        }
+    }
+
     protected Iterator<File> lister;
     final protected List<Long> channels;
     final protected int imageLimit;
     protected final LogService log;
-    protected Reader currentReader;
-    protected Iterator<Img<T>> iterator;
-    protected int currentIndex = 0;
-    protected int currentFinalIndex = 0;
     final protected SCIFIO scifio;
+    final private int openFiles;
+    final private int stripes;
+    final private Semaphore readerPermits;
+    final private ThreadLocal<Reservation> reservations = new ThreadLocal<>();
+    final private ExecutorService opener;
+    final private Deque<Future<List<Shard>>> opening = new ArrayDeque<>();
+    final private List<Shard> active = new ArrayList<>();
+    private int cursor = 0;
+    private T type;
+    private ImgPool imgPool;
 
     protected Loader(Iterator<File> lister, List<Long> channels, int imageLimit, LogService log, SCIFIO scifio) {
+        this(lister, channels, imageLimit, log, scifio, 1, -1, 1);
+    }
+
+    /**
+     * @param openFiles number of files that are open and interleaved at the same time
+     * @param maxReaders maximum number of open readers over all files, -1 for no limit
+     * @param stripes number of stripes each file is split into
+     * @throws IllegalArgumentException if maxReaders is less than the number of stripes, a file could then
+     * never be opened
+     */
+    protected Loader(Iterator<File> lister, List<Long> channels, int imageLimit, LogService log, SCIFIO scifio, int openFiles, int maxReaders, int stripes) {
         this.lister = lister;
         this.channels = channels;
         this.imageLimit = imageLimit;
         this.log = log;
         this.scifio = scifio;
+        this.openFiles = Math.max(1, openFiles);
+        this.stripes = Math.max(1, stripes);
+        if (maxReaders != -1 && maxReaders < this.stripes)
+            throw new IllegalArgumentException("The maximum number of readers (" + maxReaders + ") must be at least the number of stripes (" + this.stripes + ").");
+        this.readerPermits = maxReaders == -1 ? null : new Semaphore(maxReaders);
+        this.opener = Executors.newFixedThreadPool(this.openFiles, r -> {
+            Thread thread = new Thread(r, "open");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-        try {
-            initializeNewReader();
-        } catch (IOException | FormatException e) {
-            log.error(e);
+    /**
+     * Determines the pixel type of the images from the first image of the first file, if not known yet.
+     *
+     * @param reader reader of the file
+     */
+    protected synchronized void initializeType(Reader reader) {
+        if (type == null) {
+            Img<T> img = (Img<T>) IO.open(new Loader.CloseNoOpReader(reader), new SCIFIOConfig()).getImg();
+            type = img.firstElement().createVariable();
         }
     }
 
-    protected T getType() {
-        Img<T> img = (Img<T>) IO.open(new Loader.CloseNoOpReader(currentReader), new SCIFIOConfig()).getImg();
-        return img.firstElement().createVariable();
+    /**
+     * @param type pixel type of the images, if known without reading an image
+     */
+    protected synchronized void initializeType(T type) {
+        if (this.type == null)
+            this.type = type;
     }
 
-    protected  <U extends RealType<U>> Iterator<Img<U>> getIterator(Iterator<Integer> indices, ImgFactory<U> factory) {
+    /**
+     * @return pixel type of the images
+     */
+    protected synchronized T getType() {
+        return type;
+    }
 
-        SCIFIOConfig config = new SCIFIOConfig();
-        config.imgOpenerSetOpenAllImages(false);
-        config.imgOpenerSetRegion(
-                new ImageRegion(new AxisType[]{Axes.CHANNEL}, new Range(channels.stream().mapToLong(l -> l).toArray())));
+    /**
+     * @param imgPool pool the planes and masks are decoded into, and returned to once an image is released
+     */
+    public void setImgPool(ImgPool imgPool) {
+        this.imgPool = imgPool;
+    }
+
+    /**
+     * @param type type of the images
+     * @return factory for decoded images, backed by the image pool if there is one
+     */
+    protected <U extends NativeType<U>> ImgFactory<U> createFactory(U type) {
+        return imgPool == null ? new ArrayImgFactory<>(type) : imgPool.factory(type);
+    }
 
-        Loader.CloseNoOpReader noOpreader = new Loader.CloseNoOpReader(currentReader);
+    /**
+     * @param shard shard the indices belong to
+     * @param indices indices of the images in the file
+     * @param factory factory for the decoded images
+     * @return for each index, a supplier that decodes the image on the calling thread
+     */
+    protected  <U extends RealType<U>> Iterator<Supplier<Img<U>>> getIterator(Shard shard, Iterator<Integer> indices, ImgFactory<U> factory) {
 
-        return new Iterator<Img<U>>() {
+        ReaderPool pool = shard.pool;
+
+        return new Iterator<Supplier<Img<U>>>() {
             @Override
             public boolean hasNext() {
                 return indices.hasNext();
             }
 
             @Override
-            public SCIFIOImgPlus<U> next() {
+            public Supplier<Img<U>> next() {
                 int imgIndex = indices.next();
-                config.imgOpenerSetIndex(imgIndex);
-                return IO.open(noOpreader, factory.type(), factory, config);
+                return () -> open(pool, imgIndex, factory);
             }
         };
     }
 
-    protected Image<T> createImage(Reader reader, int id, Img<T> planes) {
-        Image<T> image = new Image<>(id);
-        image.setDirectory(reader.getMetadata().getSourceLocation().getURI().getPath());
-        image.setFilename(reader.getMetadata().getSourceLocation().getName());
-        image.setExtension(reader.getFormatName());
+    private <U extends RealType<U>> Img<U> open(ReaderPool pool, int imgIndex, ImgFactory<U> factory) {
+        SCIFIOConfig config = new SCIFIOConfig();
+        config.imgOpenerSetOpenAllImages(false);
+        config.imgOpenerSetRegion(
+                new ImageRegion(new AxisType[]{Axes.CHANNEL}, new Range(channels.stream().mapToLong(l -> l).toArray())));
+        config.imgOpenerSetIndex(imgIndex);
+
+        Reader reader;
+        try {
+            reader = pool.borrow();
+        } catch (IOException | FormatException e) {
+            throw new IllegalStateException("Could not initialize a reader for " + pool.getFile(), e);
+        }
+
+        try {
+            return IO.open(new Loader.CloseNoOpReader(reader), factory.type(), factory, config);
+        } finally {
+            pool.release(reader);
+        }
+    }
+
+    protected Image<T> createImage(Shard shard, Supplier<Img<T>> planes) {
+        Image<T> image = new Image<>(shard.nextId++);
+        image.setDirectory(shard.directory);
+        image.setFilename(shard.filename);
+        image.setExtension(shard.extension);
         image.setChannels(channels);
-        image.setAxesLengths(planes.dimensionsAsLongArray());
 
         image.setPlanes(planes);
+        image.setPool(imgPool);
+
+        ReaderPool pool = shard.pool;
+        pool.retain();
+        image.setOnRelease(pool::done);
 
         return image;
     }
 
-    private void initializeNewReader() throws IOException, FormatException {
-        currentIndex = 0;
-        currentReader = scifio.initializer().initializeReader(new FileLocation(this.lister.next()));
-        currentFinalIndex = imageLimit == -1 ? currentReader.getImageCount() : imageLimit;
-
-        iterator = initializeNewIterator();
+    /**
+     * Number of consecutive image indices that belong to one image, e.g. the planes and masks of a cell.
+     * Stripe boundaries are aligned to it.
+     *
+     * @return number of indices per image
+     */
+    protected int getStride() {
+        return 1;
     }
 
-    abstract protected Iterator<Img<T>> initializeNewIterator();
+    /**
+     * @param index index of the first plane of an image in its file
+     * @return id of the image
+     */
+    protected int getId(int index) {
+        return index / getStride();
+    }
 
-    @Override
-    public boolean hasNext() {
-        return iterator.hasNext();
+    /**
+     * @param file file to read
+     * @return a new, empty pool of readers for the file
+     */
+    protected ReaderPool createPool(File file) {
+        Reservation reservation = reservations.get();
+        int reserved = 0;
+        if (reservation != null && reservation.remaining > 0) {
+            reservation.remaining--;
+            reserved = 1;
+        }
+        ReaderPool pool = new ReaderPool(scifio, file, log, readerPermits, reserved);
+        if (reservation != null)
+            reservation.pools.add(pool);
+        return pool;
     }
 
-    @Override
-    public Image<T> next() {
+    /**
+     * Opens a file once a reader permit is available for each of its stripes. Permits that no stripe
+     * needs are returned afterwards, and if the file can't be opened its pools are closed.
+     *
+     * @param file file to open
+     * @return stripes covering all images of the file, up to the image limit
+     * @throws IOException if the file can't be read
+     * @throws FormatException if the file format isn't supported
+     */
+    private List<Shard> reserveAndOpen(File file) throws IOException, FormatException {
+        if (readerPermits == null)
+            return open(file);
 
         try {
-            Img<T> planes = iterator.next();
+            readerPermits.acquire(stripes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for readers for " + file);
+        }
+        Reservation reservation = new Reservation(stripes);
+        reservations.set(reservation);
+        boolean opened = false;
+        try {
+            List<Shard> shards = open(file);
+            opened = true;
+            return shards;
+        } finally {
+            reservations.remove();
+            readerPermits.release(reservation.remaining);
+            if (!opened)
+                reservation.pools.forEach(ReaderPool::seal);
+        }
+    }
 
-            ImageJ ij = new ImageJ();
-            IntervalView<T> it = ij.op().transform().hyperSliceView(planes, 2, 0);
+    /**
+     * Parses the metadata of a file and sets up the iterators over its images. Runs on a background thread.
+     *
+     * @param file file to open
+     * @return stripes covering all images of the file, up to the image limit
+     * @throws IOException if the file can't be read
+     * @throws FormatException if the file format isn't supported
+     */
+    protected List<Shard> open(File file) throws IOException, FormatException {
+        ReaderPool pool = createPool(file);
+        Reader reader = pool.borrow();
+        try {
+            initializeType(reader);
+            opened(file, reader);
+            return split(pool, reader.getFormatName(), reader.getImageCount());
+        } finally {
+            pool.release(reader);
+        }
+    }
 
-            Image<T> image = createImage(currentReader, currentIndex, planes);
-            currentIndex++;
+    /**
+     * Called when the metadata of a file has been parsed.
+     *
+     * @param file file that was opened
+     * @param reader reader of the file, only valid during this call
+     */
+    protected void opened(File file, Reader reader) {
+    }
 
-            if (!iterator.hasNext() & lister.hasNext()) {
-                // close current reader
-                currentReader.close();
+    /**
+     * Splits the images of a file in stripes of whole images.
+     *
+     * @param pool pool of the first stripe, the other stripes get their own
+     * @param formatName name of the format of the file
+     * @param count number of images in the file
+     * @return stripes covering all images of the file, up to the image limit
+     */
+    protected List<Shard> split(ReaderPool pool, String formatName, int count) {
+        int end = imageLimit == -1 ? count : Math.min(imageLimit, count);
+        int stride = getStride();
+        int images = (end + stride - 1) / stride;
+        int perStripe = Math.max(1, (images + stripes - 1) / stripes);
+
+        List<Shard> shards = new ArrayList<>();
+        for (int start = 0; start < end; start += perStripe * stride) {
+            ReaderPool stripePool = shards.isEmpty() ? pool : createPool(pool.getFile());
+            Shard shard = new Shard(stripePool, formatName, start, Math.min(end, start + perStripe * stride));
+            initializeShard(shard);
+            shards.add(shard);
+        }
 
-                // initialize new reader
-                initializeNewReader();
-            }
+        if (shards.isEmpty())
+            pool.seal();
+        return shards;
+    }
+
+    /**
+     * Sets up the iterators over the planes, and masks if any, of a shard.
+     *
+     * @param shard shard to initialize
+     */
+    abstract protected void initializeShard(Shard shard);
 
-            return image;
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (FormatException e) {
-            log.error("Format exception " + currentReader.getMetadata().getDatasetName());
-            e.printStackTrace();
+    /**
+     * Starts opening files until openFiles files are open or being opened.
+     */
+    private void fill() {
+        while (openCount() + opening.size() < openFiles && lister.hasNext()) {
+            File file = lister.next();
+            opening.add(opener.submit(() -> reserveAndOpen(file)));
         }
+        if (opening.isEmpty() && !lister.hasNext())
+            opener.shutdown();
+    }
 
-        return null;
+    private long openCount() {
+        return active.stream().map(shard -> shard.pool.getFile()).distinct().count();
     }
 
-    public boolean isMasked() {
-        return false;
+    /**
+     * Moves opened files to the active set. Only blocks if no file is active.
+     */
+    private void activate() {
+        fill();
+        while (!opening.isEmpty() && (active.isEmpty() || opening.peek().isDone())) {
+            Future<List<Shard>> future = opening.poll();
+            try {
+                for (Shard shard : future.get()) {
+                    if (shard.planes.hasNext())
+                        active.add(shard);
+                    else
+                        shard.pool.seal();
+                }
+            } catch (ExecutionException e) {
+                log.error("Could not open file", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            fill();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        activate();
+        return !active.isEmpty();
     }
 
-    public void setStartIndex(int index) {
+    @Override
+    public Image<T> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        if (cursor >= active.size())
+            cursor = 0;
+        Shard shard = active.get(cursor);
+
+        Image<T> image = createImage(shard, shard.planes.next());
 
+        if (shard.planes.hasNext()) {
+            cursor++;
+        } else {
+            // the pool closes its readers once all images of the shard are released
+            active.remove(cursor);
+            shard.pool.seal();
+        }
+
+        return image;
+    }
+
+    public boolean isMasked() {
+        return false;
     }
 }
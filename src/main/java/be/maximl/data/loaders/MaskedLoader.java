@@ -22,7 +22,6 @@
 package be.maximl.data.loaders;
 
 import be.maximl.data.*;
-import be.maximl.data.validators.Validator;
 import io.scif.*;
 import net.imglib2.img.Img;
 import net.imglib2.type.NativeType;
@@ -33,6 +32,7 @@ import org.scijava.log.LogService;
 import java.io.File;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Expands input files containing many images into processable images.
@@ -41,33 +41,27 @@ import java.util.List;
  */
 public abstract class MaskedLoader<T extends NativeType<T> & RealType<T>> extends Loader<T> {
 
-  final private Validator<T> validator;
-  private Iterator<Img<NativeBoolType>> maskIterator;
-
-  public MaskedLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio, Validator<T> validator) {
+  public MaskedLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio) {
     super(lister, channels, imageLimit, log, scifio);
-    this.validator = validator;
   }
 
-  @Override
-  protected Iterator<Img<T>> initializeNewIterator() {
-    maskIterator = initializeNewMaskIterator();
-    return initializeNewImageIterator();
+  public MaskedLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio, int openFiles, int maxReaders, int stripes) {
+    super(lister, channels, imageLimit, log, scifio, openFiles, maxReaders, stripes);
   }
 
-  abstract protected Iterator<Img<NativeBoolType>> initializeNewMaskIterator();
-  abstract protected Iterator<Img<T>> initializeNewImageIterator();
-
   @Override
-  public Image<T> next() {
-    Image<T> image = super.next();
+  protected void initializeShard(Shard shard) {
+    shard.masks = initializeNewMaskIterator(shard);
+    shard.planes = initializeNewImageIterator(shard);
+  }
 
-    Img<NativeBoolType> mask = maskIterator.next();
-    image.setMasks(mask);
+  abstract protected Iterator<Supplier<Img<NativeBoolType>>> initializeNewMaskIterator(Shard shard);
+  abstract protected Iterator<Supplier<Img<T>>> initializeNewImageIterator(Shard shard);
 
-    boolean valid = validator.validate(image);
-    if (!valid)
-      return null;
+  @Override
+  protected Image<T> createImage(Shard shard, Supplier<Img<T>> planes) {
+    Image<T> image = super.createImage(shard, planes);
+    image.setMasks(shard.masks.next());
 
     return image;
   }
@@ -77,9 +71,4 @@ public abstract class MaskedLoader<T extends NativeType<T> & RealType<T>> extend
     return true;
   }
 
-  @Override
-  public void setStartIndex(int index) {
-    this.currentIndex = index;
-  }
-
 }
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data.loaders;
+
+import io.scif.FormatException;
+import io.scif.Reader;
+import io.scif.SCIFIO;
+import org.scijava.io.location.FileLocation;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Readers for one file, shared by all threads that decode images from it.
+ *
+ * A thread borrows a reader for the duration of one decode and returns it afterwards, so the pool grows to
+ * as many readers as threads decode concurrently and no reader is ever used by two threads at once. The
+ * pool counts the images that still have to be decoded from the file and closes all readers once the loader
+ * has sealed it and the last of those images has been released.
+ *
+ * Pools can share a semaphore that bounds the number of open readers over all files. The loader hands every
+ * pool one permit when it creates it, so a pool can always open its first reader. Further readers only take
+ * a free permit; if there is none, the thread waits for one of the pool's own readers to be returned, which
+ * another thread is decoding with. Decoding threads never wait for another pool to close: pools only close
+ * once their images are released further down the pipeline, which could then never happen.
+ */
+public class ReaderPool {
+
+    private final SCIFIO scifio;
+    private final File file;
+    private final LogService log;
+    private final Semaphore permits;
+    private final Deque<Reader> idle = new ArrayDeque<>();
+    private final List<Reader> readers = new ArrayList<>();
+    private int pending = 0;
+    private int opening = 0;
+    // permits held by this pool, for its open readers and readers being opened
+    private int held;
+    private boolean sealed = false;
+    private boolean closed = false;
+
+    public ReaderPool(SCIFIO scifio, File file, LogService log) {
+        this(scifio, file, log, null, 0);
+    }
+
+    /**
+     * @param permits limits the number of open readers, shared between pools, or null for no limit
+     * @param reserved permits already acquired for this pool, released when the pool closes
+     */
+    public ReaderPool(SCIFIO scifio, File file, LogService log, Semaphore permits, int reserved) {
+        this.scifio = scifio;
+        this.file = file;
+        this.log = log;
+        this.permits = permits;
+        this.held = reserved;
+    }
+
+    /**
+     * @return an idle reader, or a newly initialized one if all readers are in use
+     * @throws IOException if the file can't be read
+     * @throws FormatException if the file format isn't supported
+     */
+    public Reader borrow() throws IOException, FormatException {
+        boolean waitForPermit;
+        synchronized (this) {
+            while (true) {
+                if (closed)
+                    throw new IllegalStateException("Reader pool for " + file + " is closed.");
+                if (!idle.isEmpty())
+                    return idle.pop();
+                // a permit the pool holds but doesn't use, reserved or left by a reader that failed to open
+                if (permits == null || readers.size() + opening < held) {
+                    waitForPermit = false;
+                    break;
+                }
+                if (permits.tryAcquire()) {
+                    held++;
+                    waitForPermit = false;
+                    break;
+                }
+                if (readers.isEmpty() && opening == 0) {
+                    // a pool without reserved permits: no reader of this pool will come back, only another
+                    // pool can free a permit
+                    waitForPermit = true;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a reader for " + file);
+                }
+            }
+            opening++;
+        }
+
+        Reader reader = null;
+        try {
+            if (waitForPermit) {
+                permits.acquireUninterruptibly();
+                synchronized (this) {
+                    held++;
+                }
+            }
+            // initializing parses the metadata of the file, don't block other threads meanwhile
+            reader = scifio.initializer().initializeReader(new FileLocation(file));
+            return reader;
+        } finally {
+            synchronized (this) {
+                opening--;
+                // the permit stays with the pool if the reader couldn't be opened, for the next attempt
+                if (reader != null)
+                    readers.add(reader);
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized void release(Reader reader) {
+        idle.push(reader);
+        notifyAll();
+    }
+
+    /**
+     * Registers an image that will be decoded from this file.
+     */
+    public synchronized void retain() {
+        pending++;
+    }
+
+    /**
+     * Signals that an image registered with {@link #retain()} no longer needs the file.
+     */
+    public synchronized void done() {
+        pending--;
+        if (sealed && pending == 0)
+            close();
+    }
+
+    /**
+     * Signals that no more images will be registered. The readers are closed as soon as all registered
+     * images are done.
+     */
+    public synchronized void seal() {
+        sealed = true;
+        if (pending == 0)
+            close();
+    }
+
+    private void close() {
+        closed = true;
+        for (Reader reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                log.error("Could not close reader for " + file, e);
+            }
+        }
+        if (permits != null)
+            permits.release(held);
+        held = 0;
+        readers.clear();
+        idle.clear();
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
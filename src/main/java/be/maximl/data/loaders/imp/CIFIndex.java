@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data.loaders.imp;
+
+import io.scif.Reader;
+import net.imagej.axis.Axes;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar index of a CIF file, stored next to it as &lt;file&gt;.idx.
+ *
+ * For every image of the file, as numbered by SCIFIO, the index records the image file directory holding
+ * its pixel data: offset, dimensions, bit depth, compression and strip offsets. It also records the channel
+ * count, pixel type and format name. With a valid index the loader can emit the images of a file without
+ * parsing its metadata first, and any image can be located directly. The index is keyed by the size and modification time of the file
+ * and a checksum of its first bytes, a file that doesn't match is indexed again.
+ */
+public class CIFIndex {
+
+    private static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x43494658;
+    private static final int VERSION = 1;
+    private static final int HASHED_BYTES = 1 << 16;
+
+    private final File file;
+    private final long size;
+    private final long modified;
+    private final long hash;
+    private final String formatName;
+    private final String typeClass;
+    private final int channels;
+    private final ByteOrder byteOrder;
+    private final TIFFDirectory[] images;
+
+    private CIFIndex(File file, long size, long modified, long hash, String formatName, String typeClass, int channels, ByteOrder byteOrder, TIFFDirectory[] images) {
+        this.file = file;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+        this.formatName = formatName;
+        this.typeClass = typeClass;
+        this.channels = channels;
+        this.byteOrder = byteOrder;
+        this.images = images;
+    }
+
+    private static File indexFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    private static long hash(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HASHED_BYTES, channel.size()));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0)
+                break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        return crc.getValue();
+    }
+
+    /**
+     * Indexes a file from its image file directories and the metadata parsed by a SCIFIO reader.
+     *
+     * @param file CIF file
+     * @param reader initialized reader of the file
+     * @param type pixel type of the images
+     * @return index of the file
+     * @throws IOException if the file can't be read or its directories don't match the reader's images
+     */
+    public static CIFIndex build(File file, Reader reader, RealType<?> type) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long modified = file.lastModified();
+            List<TIFFDirectory> directories = TIFFDirectory.readAll(channel);
+
+            // leading directories, such as the one holding the acquisition metadata, aren't images
+            int imageCount = reader.getImageCount();
+            int skip = directories.size() - imageCount;
+            if (skip < 0)
+                throw new IOException("File has fewer directories than images: " + file);
+
+            return new CIFIndex(
+                    file, channel.size(), modified, hash(channel),
+                    reader.getFormatName(),
+                    type.getClass().getName(),
+                    (int) reader.getMetadata().get(0).getAxisLength(Axes.CHANNEL),
+                    TIFFDirectory.readByteOrder(channel),
+                    directories.subList(skip, directories.size()).toArray(new TIFFDirectory[0]));
+        }
+    }
+
+    /**
+     * @param file CIF file
+     * @return the index of the file, or null if there is none, it doesn't match the file or it is damaged
+     * @throws IOException if the index or the file can't be opened
+     */
+    public static CIFIndex load(File file) throws IOException {
+        File indexFile = indexFile(file);
+        if (!indexFile.isFile())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(file, indexFile.length(), in, channel);
+        }
+    }
+
+    /**
+     * Reads an index, checking every count and offset against the sizes of the index and the file.
+     *
+     * @return the index, or null if it doesn't match the file or can't be parsed
+     */
+    private static CIFIndex read(File file, long indexSize, DataInputStream in, FileChannel channel) {
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+
+            long size = in.readLong();
+            long modified = in.readLong();
+            long hash = in.readLong();
+            if (size != channel.size() || modified != file.lastModified() || hash != hash(channel))
+                return null;
+
+            String formatName = in.readUTF();
+            String typeClass = in.readUTF();
+            int channels = in.readInt();
+            ByteOrder byteOrder = in.readBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            // every directory takes at least 32 bytes, every strip 16
+            int count = in.readInt();
+            if (channels < 1 || count < 0 || (long) count * 32 > indexSize)
+                return null;
+
+            TIFFDirectory[] images = new TIFFDirectory[count];
+            for (int i = 0; i < images.length; i++) {
+                TIFFDirectory dir = new TIFFDirectory(in.readLong());
+                dir.width = in.readInt();
+                dir.height = in.readInt();
+                dir.bitsPerSample = in.readInt();
+                dir.samplesPerPixel = in.readInt();
+                dir.compression = in.readInt();
+                int strips = in.readInt();
+                if (strips < 0 || (long) strips * 16 > indexSize)
+                    return null;
+                dir.stripOffsets = new long[strips];
+                dir.stripByteCounts = new long[strips];
+                for (int j = 0; j < strips; j++) {
+                    dir.stripOffsets[j] = in.readLong();
+                    dir.stripByteCounts[j] = in.readLong();
+                    if (dir.stripOffsets[j] < 0 || dir.stripByteCounts[j] < 0 || dir.stripOffsets[j] + dir.stripByteCounts[j] > size)
+                        return null;
+                }
+                images[i] = dir;
+            }
+
+            return new CIFIndex(file, size, modified, hash, formatName, typeClass, channels, byteOrder, images);
+        } catch (IOException | RuntimeException e) {
+            // a damaged index is indexed again, like a stale one
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index next to the file. The index is written to a temporary file of its own first and then
+     * moved in place, so a concurrent or interrupted run never sees a partial index.
+     *
+     * @throws IOException if the index can't be written
+     */
+    public void save() throws IOException {
+        Path indexFile = indexFile(file).getAbsoluteFile().toPath();
+        // a unique name, runs indexing the same file at the same time would otherwise write to the same file
+        Path tmp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeLong(hash);
+            out.writeUTF(formatName);
+            out.writeUTF(typeClass);
+            out.writeInt(channels);
+            out.writeBoolean(byteOrder == ByteOrder.LITTLE_ENDIAN);
+
+            out.writeInt(images.length);
+            for (TIFFDirectory dir : images) {
+                out.writeLong(dir.offset);
+                out.writeInt(dir.width);
+                out.writeInt(dir.height);
+                out.writeInt(dir.bitsPerSample);
+                out.writeInt(dir.samplesPerPixel);
+                out.writeInt(dir.compression);
+                int strips = Math.min(dir.stripOffsets.length, dir.stripByteCounts.length);
+                out.writeInt(strips);
+                for (int j = 0; j < strips; j++) {
+                    out.writeLong(dir.stripOffsets[j]);
+                    out.writeLong(dir.stripByteCounts[j]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        try {
+            try {
+                Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of images in the file, planes and masks counted separately as SCIFIO does
+     */
+    public int getImageCount() {
+        return images.length;
+    }
+
+    /**
+     * @param index index of the image, as numbered by SCIFIO
+     * @return directory holding the pixel data of the image
+     */
+    public TIFFDirectory getDirectory(int index) {
+        return images[index];
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @param index index of the image, as numbered by SCIFIO
+     * @return width of one channel of the image, channels are stored side by side
+     */
+    public int getChannelWidth(int index) {
+        return images[index].width / channels;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /**
+     * @return a new instance of the pixel type of the images
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends NativeType<T> & RealType<T>> T createType() {
+        try {
+            return (T) Class.forName(typeClass).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unknown pixel type in index: " + typeClass, e);
+        }
+    }
+}
@@ -1,36 +1,107 @@
 package be.maximl.data.loaders.imp;
 
 import be.maximl.data.loaders.MaskedLoader;
-import be.maximl.data.validators.Validator;
+import be.maximl.data.loaders.ReaderPool;
+import io.scif.FormatException;
+import io.scif.Reader;
 import io.scif.SCIFIO;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.NativeBoolType;
 import net.imglib2.type.numeric.RealType;
 import org.scijava.log.LogService;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 public class CIFLoader<T extends NativeType<T> & RealType<T>> extends MaskedLoader<T> {
 
-    public CIFLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio, Validator<T> validator) {
-        super(log, imageLimit, channels, lister, scifio, validator);
+    // indexes of the files that are being opened, for use while their shards are initialized
+    private final Map<File, CIFIndex> indexes = new ConcurrentHashMap<>();
+
+    public CIFLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio) {
+        super(log, imageLimit, channels, lister, scifio);
+    }
+
+    public CIFLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio, int openFiles, int maxReaders, int stripes) {
+        super(log, imageLimit, channels, lister, scifio, openFiles, maxReaders, stripes);
+    }
+
+    /**
+     * Opens a file from its sidecar index if there is a valid one, so the open thread doesn't parse the
+     * metadata of the file and its images are emitted right away. This only moves the parsing: the SCIFIO
+     * readers that decode the images still parse the metadata when they are initialized, on the first decode
+     * of every stripe. Only {@link NativeCIFLoader}, which decodes the images it supports from the index,
+     * skips the parsing altogether.
+     */
+    @Override
+    protected List<Shard> open(File file) throws IOException, FormatException {
+        CIFIndex index = null;
+        try {
+            index = CIFIndex.load(file);
+        } catch (IOException e) {
+            log.warn("Could not read index of " + file + ", indexing again", e);
+        }
+
+        try {
+            if (index == null)
+                return super.open(file);
+
+            indexes.put(file, index);
+            initializeType(index.<T>createType());
+            ReaderPool pool = createPool(file);
+            return split(pool, index.getFormatName(), index.getImageCount());
+        } finally {
+            indexes.remove(file);
+        }
+    }
+
+    /**
+     * Indexes a file the first time it is opened.
+     */
+    @Override
+    protected void opened(File file, Reader reader) {
+        try {
+            CIFIndex index = CIFIndex.build(file, reader, getType());
+            indexes.put(file, index);
+            index.save();
+        } catch (IOException e) {
+            log.warn("Could not index " + file, e);
+        }
+    }
+
+    /**
+     * @param shard shard that is being initialized
+     * @return index of the shard's file, or null if the file couldn't be indexed
+     */
+    protected CIFIndex getIndex(Shard shard) {
+        return indexes.get(shard.pool.getFile());
+    }
+
+    /**
+     * Each cell is stored as an image followed by its mask.
+     */
+    @Override
+    protected int getStride() {
+        return 2;
     }
 
     @Override
-    protected Iterator<Img<NativeBoolType>> initializeNewMaskIterator() {
-        ImgFactory<NativeBoolType> factory = new ArrayImgFactory<>(new NativeBoolType());
-        return getIterator(IntStream.range(currentIndex, currentFinalIndex).filter(l -> l%2 != 0).iterator(), factory);
+    protected Iterator<Supplier<Img<NativeBoolType>>> initializeNewMaskIterator(Shard shard) {
+        ImgFactory<NativeBoolType> factory = createFactory(new NativeBoolType());
+        return getIterator(shard, IntStream.range(shard.start, shard.end).filter(l -> l%2 != 0).iterator(), factory);
     }
 
     @Override
-    protected Iterator<Img<T>> initializeNewImageIterator() {
-        ImgFactory<T> factory = new ArrayImgFactory<>(getType());
-        return getIterator(IntStream.range(currentIndex, currentFinalIndex).filter(l -> l%2 == 0).iterator(), factory);
+    protected Iterator<Supplier<Img<T>>> initializeNewImageIterator(Shard shard) {
+        ImgFactory<T> factory = createFactory(getType());
+        return getIterator(shard, IntStream.range(shard.start, shard.end).filter(l -> l%2 == 0).iterator(), factory);
     }
 }
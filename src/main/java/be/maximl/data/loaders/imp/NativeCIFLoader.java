@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data.loaders.imp;
+
+import io.scif.FormatException;
+import io.scif.SCIFIO;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.NativeBoolType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * CIF loader that decodes planes directly from a memory-mapped file, located through the file's
+ * {@link CIFIndex}.
+ *
+ * Uncompressed 8 and 16-bit planes and bitmask (run-length) compressed masks are decoded natively into the
+ * image arrays. Samples are read as signed or unsigned according to the pixel type in the index.
+ * Planes in any other encoding, such as the greyscale compression, or whose pixel type isn't an integer type
+ * of the sample size, are still decoded through SCIFIO, as are all images of a file that couldn't be indexed.
+ * Pixel values, dimensions and image ids are the same as with {@link CIFLoader}.
+ *
+ * @param <T> image data type
+ */
+public class NativeCIFLoader<T extends NativeType<T> & RealType<T>> extends CIFLoader<T> {
+
+    public static final int COMPRESSION_BITMASK = 30818;
+
+    // only planes fit in a mapping, a mapped segment overlaps the next one by more than any plane
+    private static final long SEGMENT = 1L << 30;
+    private static final long OVERLAP = 1L << 26;
+
+    /**
+     * Read-only mapping of a file, in segments so files larger than 2GB can be mapped.
+     */
+    private static class MappedFile {
+        private final MappedByteBuffer[] segments;
+
+        MappedFile(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * SEGMENT;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT + OVERLAP, size - start));
+                }
+            }
+        }
+
+        /**
+         * Copies bytes of the file, safe to call from several threads at once.
+         */
+        void read(long offset, byte[] dst, int pos, int length) {
+            ByteBuffer segment = segments[(int) (offset / SEGMENT)].duplicate();
+            segment.position((int) (offset % SEGMENT));
+            segment.get(dst, pos, length);
+        }
+    }
+
+    private final Map<File, MappedFile> mappings = new ConcurrentHashMap<>();
+    private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[0]);
+    private final ThreadLocal<boolean[]> maskScratch = ThreadLocal.withInitial(() -> new boolean[0]);
+
+    public NativeCIFLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio) {
+        super(log, imageLimit, channels, lister, scifio);
+    }
+
+    public NativeCIFLoader(LogService log, int imageLimit, List<Long> channels, Iterator<File> lister, SCIFIO scifio, int openFiles, int maxReaders, int stripes) {
+        super(log, imageLimit, channels, lister, scifio, openFiles, maxReaders, stripes);
+    }
+
+    private MappedFile map(File file) {
+        return mappings.computeIfAbsent(file, f -> {
+            try {
+                return new MappedFile(f);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    protected List<Shard> open(File file) throws IOException, FormatException {
+        try {
+            return super.open(file);
+        } finally {
+            // the shards hold on to the mapping, it is unmapped once they are all collected
+            mappings.remove(file);
+        }
+    }
+
+    @Override
+    protected Iterator<Supplier<Img<NativeBoolType>>> initializeNewMaskIterator(Shard shard) {
+        Iterator<Supplier<Img<NativeBoolType>>> fallback = super.initializeNewMaskIterator(shard);
+        CIFIndex index = getIndex(shard);
+        if (index == null)
+            return fallback;
+
+        MappedFile data = map(index.getFile());
+        ImgFactory<NativeBoolType> factory = createFactory(new NativeBoolType());
+        return decodeNatively(shard.start + 1, fallback, i -> index.getDirectory(i).getCompression() == COMPRESSION_BITMASK,
+                i -> () -> decodeMask(data, index, i, factory));
+    }
+
+    @Override
+    protected Iterator<Supplier<Img<T>>> initializeNewImageIterator(Shard shard) {
+        Iterator<Supplier<Img<T>>> fallback = super.initializeNewImageIterator(shard);
+        CIFIndex index = getIndex(shard);
+        if (index == null)
+            return fallback;
+
+        MappedFile data = map(index.getFile());
+        ImgFactory<T> factory = createFactory(getType());
+        T type = index.createType();
+        boolean signed = type.getMinValue() < 0;
+        return decodeNatively(shard.start, fallback, i -> isUncompressedInteger(index.getDirectory(i), type),
+                i -> () -> decodePlanes(data, index, i, factory, signed));
+    }
+
+    /**
+     * @param type pixel type of the file, the samples must be integers of the same size for the native
+     *             decoder to produce the values SCIFIO does
+     */
+    private static boolean isUncompressedInteger(TIFFDirectory dir, RealType<?> type) {
+        return dir.getCompression() == TIFFDirectory.COMPRESSION_NONE
+                && dir.getSamplesPerPixel() == 1
+                && (dir.getBitsPerSample() == 8 || dir.getBitsPerSample() == 16)
+                && type instanceof IntegerType
+                && type.getBitsPerPixel() == dir.getBitsPerSample();
+    }
+
+    /**
+     * Replaces the SCIFIO suppliers of a shard by native ones for the images that can be decoded natively.
+     *
+     * @param first index of the first image of the iterator, images are two indices apart
+     * @param fallback SCIFIO suppliers of the images
+     * @param supported whether the image at an index can be decoded natively
+     * @param decoder native supplier of the image at an index
+     * @return suppliers of the images
+     */
+    private <U> Iterator<Supplier<Img<U>>> decodeNatively(int first, Iterator<Supplier<Img<U>>> fallback,
+                                                        IntPredicate supported, IntFunction<Supplier<Img<U>>> decoder) {
+        return new Iterator<Supplier<Img<U>>>() {
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return fallback.hasNext();
+            }
+
+            @Override
+            public Supplier<Img<U>> next() {
+                Supplier<Img<U>> scifio = fallback.next();
+                int i = next;
+                next += getStride();
+                return supported.test(i) ? decoder.apply(i) : scifio;
+            }
+        };
+    }
+
+    /**
+     * Copies the strips of an image into a scratch buffer of the calling thread.
+     */
+    private byte[] readStrips(MappedFile data, TIFFDirectory dir) {
+        long[] offsets = dir.getStripOffsets();
+        long[] counts = dir.getStripByteCounts();
+
+        int length = 0;
+        for (long count : counts) {
+            length += (int) count;
+        }
+
+        byte[] bytes = scratch.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            scratch.set(bytes);
+        }
+
+        int pos = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            data.read(offsets[i], bytes, pos, (int) counts[i]);
+            pos += (int) counts[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes the selected channels of an uncompressed image. Channels are stored side by side in the
+     * directory, the result has one slice per selected channel.
+     *
+     * @param signed whether the samples are two's complement, as for a signed pixel type
+     */
+    private Img<T> decodePlanes(MappedFile data, CIFIndex index, int i, ImgFactory<T> factory, boolean signed) {
+        TIFFDirectory dir = index.getDirectory(i);
+        byte[] bytes = readStrips(data, dir);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(index.getByteOrder());
+
+        int width = dir.getWidth();
+        int channelWidth = index.getChannelWidth(i);
+        int height = dir.getHeight();
+        int bytesPerSample = dir.getBitsPerSample() / 8;
+
+        Img<T> img = factory.create(channelWidth, height, channels.size());
+        Cursor<T> cursor = img.cursor();
+        for (long channel : channels) {
+            int x0 = (int) channel * channelWidth;
+            for (int y = 0; y < height; y++) {
+                int pos = (y * width + x0) * bytesPerSample;
+                for (int x = 0; x < channelWidth; x++, pos += bytesPerSample) {
+                    int value = bytesPerSample == 1 ? buffer.get(pos) : buffer.getShort(pos);
+                    if (!signed)
+                        value &= bytesPerSample == 1 ? 0xFF : 0xFFFF;
+                    cursor.next().setReal(value);
+                }
+            }
+        }
+
+        return img;
+    }
+
+    /**
+     * Decodes the selected channels of a bitmask compressed mask. The strips hold pairs of a value and a
+     * run length minus one, any non-zero value is foreground.
+     */
+    private Img<NativeBoolType> decodeMask(MappedFile data, CIFIndex index, int i, ImgFactory<NativeBoolType> factory) {
+        TIFFDirectory dir = index.getDirectory(i);
+        byte[] bytes = readStrips(data, dir);
+        int length = 0;
+        for (long count : dir.getStripByteCounts()) {
+            length += (int) count;
+        }
+
+        int width = dir.getWidth();
+        int channelWidth = index.getChannelWidth(i);
+        int height = dir.getHeight();
+
+        int size = width * height;
+        boolean[] mask = maskScratch.get();
+        if (mask.length < size) {
+            mask = new boolean[size];
+            maskScratch.set(mask);
+        }
+
+        int pos = 0;
+        for (int j = 0; j + 1 < length && pos < size; j += 2) {
+            int run = Math.min((bytes[j + 1] & 0xFF) + 1, size - pos);
+            Arrays.fill(mask, pos, pos + run, bytes[j] != 0);
+            pos += run;
+        }
+        Arrays.fill(mask, pos, size, false);
+
+        Img<NativeBoolType> img = factory.create(channelWidth, height, channels.size());
+        Cursor<NativeBoolType> cursor = img.cursor();
+        for (long channel : channels) {
+            int x0 = (int) channel * channelWidth;
+            for (int y = 0; y < height; y++) {
+                int offset = y * width + x0;
+                for (int x = 0; x < channelWidth; x++) {
+                    cursor.next().set(mask[offset + x]);
+                }
+            }
+        }
+
+        return img;
+    }
+}
@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data.loaders.imp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The fields of one TIFF image file directory (IFD) needed to locate and decode its pixel data.
+ *
+ * Only classic TIFF is supported, which is what CIF files use. Reading the directories this way touches a
+ * few bytes per IFD, whereas initializing a SCIFIO reader parses the complete metadata of the file.
+ */
+public class TIFFDirectory {
+
+    public static final int COMPRESSION_NONE = 1;
+
+    private static final int TAG_WIDTH = 256;
+    private static final int TAG_HEIGHT = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    final long offset;
+    int width;
+    int height;
+    int bitsPerSample = 1;
+    int samplesPerPixel = 1;
+    int compression = COMPRESSION_NONE;
+    long[] stripOffsets = new long[0];
+    long[] stripByteCounts = new long[0];
+
+    TIFFDirectory(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @param channel open file
+     * @return byte order of the file
+     * @throws IOException if the file isn't a classic TIFF file
+     */
+    public static ByteOrder readByteOrder(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, 4, ByteOrder.LITTLE_ENDIAN);
+        ByteOrder order;
+        if (header.get(0) == 'I' && header.get(1) == 'I')
+            order = ByteOrder.LITTLE_ENDIAN;
+        else if (header.get(0) == 'M' && header.get(1) == 'M')
+            order = ByteOrder.BIG_ENDIAN;
+        else
+            throw new IOException("Not a TIFF file.");
+
+        header.order(order);
+        if (header.getShort(2) != 42)
+            throw new IOException("Only classic TIFF files are supported.");
+        return order;
+    }
+
+    /**
+     * Walks the chain of image file directories.
+     *
+     * @param channel open file
+     * @return all directories, in file order
+     * @throws IOException if the file can't be read, isn't a classic TIFF file or its chain of directories
+     * is corrupt: it loops or points past the end of the file
+     */
+    public static List<TIFFDirectory> readAll(FileChannel channel) throws IOException {
+        ByteOrder order = readByteOrder(channel);
+        List<TIFFDirectory> res = new ArrayList<>();
+        Set<Long> visited = new HashSet<>();
+        long size = channel.size();
+
+        long next = read(channel, 4, 4, order).getInt(0) & 0xFFFFFFFFL;
+        while (next != 0) {
+            if (next + 2 > size)
+                throw new IOException("Image file directory at " + next + " lies past the end of the file.");
+            if (!visited.add(next))
+                throw new IOException("Image file directories form a loop at " + next + ".");
+
+            int count = read(channel, next, 2, order).getShort(0) & 0xFFFF;
+            ByteBuffer entries = read(channel, next + 2, count * 12 + 4, order);
+
+            TIFFDirectory dir = new TIFFDirectory(next);
+            for (int i = 0; i < count; i++) {
+                dir.readEntry(channel, entries, i * 12, order);
+            }
+            res.add(dir);
+
+            next = entries.getInt(count * 12) & 0xFFFFFFFFL;
+        }
+
+        return res;
+    }
+
+    private void readEntry(FileChannel channel, ByteBuffer entries, int pos, ByteOrder order) throws IOException {
+        int tag = entries.getShort(pos) & 0xFFFF;
+        int type = entries.getShort(pos + 2) & 0xFFFF;
+        int count = entries.getInt(pos + 4);
+        if ((type != TYPE_SHORT && type != TYPE_LONG) || count == 0)
+            return;
+        if (count < 0 || count > Integer.MAX_VALUE / 4 || (long) count * 4 > channel.size())
+            throw new IOException("Invalid value count " + count + " for tag " + tag + ".");
+
+        switch (tag) {
+            case TAG_WIDTH:
+                width = (int) readValues(channel, entries, pos, type, count, order)[0];
+                break;
+            case TAG_HEIGHT:
+                height = (int) readValues(channel, entries, pos, type, count, order)[0];
+                break;
+            case TAG_BITS_PER_SAMPLE:
+                bitsPerSample = (int) readValues(channel, entries, pos, type, count, order)[0];
+                break;
+            case TAG_SAMPLES_PER_PIXEL:
+                samplesPerPixel = (int) readValues(channel, entries, pos, type, count, order)[0];
+                break;
+            case TAG_COMPRESSION:
+                compression = (int) readValues(channel, entries, pos, type, count, order)[0];
+                break;
+            case TAG_STRIP_OFFSETS:
+                stripOffsets = readValues(channel, entries, pos, type, count, order);
+                break;
+            case TAG_STRIP_BYTE_COUNTS:
+                stripByteCounts = readValues(channel, entries, pos, type, count, order);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static long[] readValues(FileChannel channel, ByteBuffer entries, int pos, int type, int count, ByteOrder order) throws IOException {
+        int size = type == TYPE_SHORT ? 2 : 4;
+
+        // values that fit in four bytes are stored in the entry itself
+        ByteBuffer values;
+        int start;
+        if (count * size <= 4) {
+            values = entries;
+            start = pos + 8;
+        } else {
+            values = read(channel, entries.getInt(pos + 8) & 0xFFFFFFFFL, count * size, order);
+            start = 0;
+        }
+
+        long[] res = new long[count];
+        for (int i = 0; i < count; i++) {
+            res[i] = size == 2
+                    ? values.getShort(start + i * 2) & 0xFFFF
+                    : values.getInt(start + i * 4) & 0xFFFFFFFFL;
+        }
+        return res;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file at " + position);
+        }
+        return buffer;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    public int getSamplesPerPixel() {
+        return samplesPerPixel;
+    }
+
+    public int getCompression() {
+        return compression;
+    }
+
+    public long[] getStripOffsets() {
+        return stripOffsets;
+    }
+
+    public long[] getStripByteCounts() {
+        return stripByteCounts;
+    }
+}
@@ -4,7 +4,6 @@ import be.maximl.data.loaders.Loader;
 import io.scif.SCIFIO;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.scijava.log.LogService;
@@ -13,6 +12,7 @@ import java.io.File;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class TIFFLoader<T extends NativeType<T> & RealType<T>> extends Loader<T> {
 
@@ -20,9 +20,13 @@ public class TIFFLoader<T extends NativeType<T> & RealType<T>> extends Loader<T>
         super(lister, channels, 1, log, scifio);
     }
 
+    public TIFFLoader(Iterator<File> lister, List<Long> channels, LogService log, SCIFIO scifio, int openFiles, int maxReaders) {
+        super(lister, channels, 1, log, scifio, openFiles, maxReaders, 1);
+    }
+
     @Override
-    protected Iterator<Img<T>> initializeNewIterator() {
-        ImgFactory<T> factory = new ArrayImgFactory<>(getType());
-        return getIterator(Collections.singleton(0).iterator(), factory);
+    protected void initializeShard(Shard shard) {
+        ImgFactory<T> factory = createFactory(getType());
+        shard.planes = getIterator(shard, Collections.singleton(0).iterator(), factory);
     }
 }
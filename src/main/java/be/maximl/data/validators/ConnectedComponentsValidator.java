@@ -21,27 +21,29 @@
  */
 package be.maximl.data.validators;
 
+import be.maximl.data.BitMask;
 import be.maximl.data.Image;
-import ij.process.BinaryProcessor;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import inra.ijpb.binary.conncomp.ConnectedComponentsLabeling;
-import inra.ijpb.binary.conncomp.FloodFillComponentsLabeling;
 import net.imagej.ops.OpService;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.logic.NativeBoolType;
 import net.imglib2.type.numeric.RealType;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-
+/**
+ * Rejects images with more than one connected component (8-connectivity) in the mask of any channel.
+ *
+ * Components are counted on the bit-packed masks with a labeler per thread, which stops as soon as a second
+ * component is found. The validator can be called from several threads at once.
+ */
 public class ConnectedComponentsValidator<T extends NativeType<T> & RealType<T>> implements Validator<T> {
 
-    private int invalid = 0;
-    final private List<Integer> invalidList = new ArrayList<>();
+    final private AtomicInteger invalid = new AtomicInteger();
+    final private Queue<Integer> invalidIds = new ConcurrentLinkedQueue<>();
+    final private ThreadLocal<BitMask.Labeler> labelers = ThreadLocal.withInitial(BitMask.Labeler::new);
     final private OpService opService;
 
     public ConnectedComponentsValidator(OpService opService) {
@@ -50,29 +52,12 @@ public class ConnectedComponentsValidator<T extends NativeType<T> & RealType<T>>
 
     @Override
     public boolean validate(Image<T> image) {
-        ConnectedComponentsLabeling labeling = new FloodFillComponentsLabeling(1, 8);
-        ImageProcessor ipMask;
-        BinaryProcessor bpMask;
-        Img<NativeBoolType> mask = image.getMaskImg();
-
+        BitMask.Labeler labeler = labelers.get();
         for (int i = 0; i<image.getChannels().size(); i++) {
-
-            ipMask = ImageJFunctions.wrap(
-                    opService.transform().hyperSliceView(mask, Image.CHANNELDIM, i), "ip"
-            ).getProcessor();
-            bpMask = new BinaryProcessor(new ByteProcessor(ipMask, false));
-            int[] histogram = labeling.computeLabels(bpMask).getHistogram();
-
-            boolean count = false;
-            for (int j = 1; j<histogram.length; j++) { // start at 1 because 0 is background
-                if (histogram[j] > 0) {
-                    if (count) {
-                        invalid++;
-                        invalidList.add(image.getId());
-                        return false;
-                    }
-                    count = true;
-                }
+            if (labeler.count(image.getMask(i), 8, 2) > 1) {
+                invalid.incrementAndGet();
+                invalidIds.add(image.getId());
+                return false;
             }
         }
 
@@ -81,11 +66,11 @@ public class ConnectedComponentsValidator<T extends NativeType<T> & RealType<T>>
 
     @Override
     public int getInvalidCount() {
-        return invalid;
+        return invalid.get();
     }
 
     @Override
     public List<Integer> getInvalidIds() {
-        return invalidList;
+        return new ArrayList<>(invalidIds);
     }
 }
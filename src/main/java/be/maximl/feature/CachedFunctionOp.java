@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imagej.ops.Op;
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unary function op that is matched once per worker thread and input class, instead of on every call.
+ *
+ * Used for the contour op and the Zernike magnitude and phase ops, the only ops the features still run.
+ *
+ * @param <I> input type
+ * @param <O> output type
+ */
+public class CachedFunctionOp<I, O> {
+
+    private final OpService opService;
+    private final Class<? extends Op> opType;
+    private final Class<O> outType;
+    private final Object[] args;
+    private final ThreadLocal<Map<Class<?>, UnaryFunctionOp<I, O>>> ops = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * @param opService service used to match the op
+     * @param opType type of the op, e.g. Ops.Geometric.Contour.class
+     * @param outType type of the output
+     * @param args additional arguments of the op, fixed at matching time
+     */
+    public CachedFunctionOp(OpService opService, Class<? extends Op> opType, Class<O> outType, Object... args) {
+        this.opService = opService;
+        this.opType = opType;
+        this.outType = outType;
+        this.args = args;
+    }
+
+    public O calculate(I input) {
+        Map<Class<?>, UnaryFunctionOp<I, O>> cache = ops.get();
+        UnaryFunctionOp<I, O> op = cache.get(input.getClass());
+        if (op == null) {
+            op = Functions.unary(opService, opType, outType, input, args);
+            cache.put(input.getClass(), op);
+        }
+
+        return op.calculate(input);
+    }
+}
@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Values of the intermediates of one channel. A context is filled with the inputs of the channel, after
+ * which a {@link FeaturePlan} adds the derived intermediates.
+ */
+public class ChannelContext {
+
+    private final Map<Intermediate<?>, Object> values = new IdentityHashMap<>();
+    private ChannelWorkspace workspace;
+
+    /**
+     * Clears all values, so the context can be reused for the next channel.
+     *
+     * @param workspace buffers of the channel
+     */
+    public void reset(ChannelWorkspace workspace) {
+        this.workspace = workspace;
+        values.clear();
+    }
+
+    public ChannelWorkspace getWorkspace() {
+        return workspace;
+    }
+
+    public <V> void put(Intermediate<V> intermediate, V value) {
+        values.put(intermediate, value);
+    }
+
+    public boolean contains(Intermediate<?> intermediate) {
+        return values.containsKey(intermediate);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <V> V get(Intermediate<V> intermediate) {
+        if (!values.containsKey(intermediate))
+            throw new IllegalStateException("Intermediate " + intermediate + " is not available in this context.");
+        return (V) values.get(intermediate);
+    }
+}
@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+/**
+ * Reusable buffers for computing the features of one channel.
+ *
+ * A {@link FeatureVectorFactory} keeps one workspace per channel for every worker thread. The foreground
+ * pixels of a channel are extracted into the workspace once, and every statistic, histogram and
+ * co-occurrence matrix of that channel is computed into the workspace's own arrays, so in steady state
+ * computing a cell does not allocate.
+ */
+public class ChannelWorkspace {
+
+    private final ForegroundBuffer foreground = new ForegroundBuffer();
+    private final IntensityStatistics statistics = new IntensityStatistics();
+    private final IntensityHistogram histogram = new IntensityHistogram();
+    private final SortedQuantiles sortedQuantiles = new SortedQuantiles();
+    private final CooccurrenceMatrices cooccurrenceMatrices;
+    private final MultiScaleGradient gradient = new MultiScaleGradient();
+    private final SobelStatistics sobel = new SobelStatistics();
+    private final ZernikeMoments zernike;
+    private final TamuraTexture tamura = new TamuraTexture();
+    private final ShapeDescriptor shape = new ShapeDescriptor();
+
+    public ChannelWorkspace(int nrGreyLevels, int distance, int zernikeOrder) {
+        cooccurrenceMatrices = new CooccurrenceMatrices(nrGreyLevels, distance);
+        zernike = new ZernikeMoments(zernikeOrder);
+    }
+
+    public ForegroundBuffer getForeground() {
+        return foreground;
+    }
+
+    public IntensityStatistics getStatistics() {
+        return statistics;
+    }
+
+    public CooccurrenceMatrices getCooccurrenceMatrices() {
+        return cooccurrenceMatrices;
+    }
+
+    public MultiScaleGradient getGradient() {
+        return gradient;
+    }
+
+    public SobelStatistics getSobel() {
+        return sobel;
+    }
+
+    public ZernikeMoments getZernike() {
+        return zernike;
+    }
+
+    public TamuraTexture getTamura() {
+        return tamura;
+    }
+
+    public ShapeDescriptor getShape() {
+        return shape;
+    }
+
+    /**
+     * Computes the quantiles of the foreground pixels, from a histogram for integer types with a small
+     * enough value range and by sorting otherwise. Requires the statistics to be accumulated.
+     *
+     * @return quantiles of the foreground pixels
+     */
+    public Quantiles computeQuantiles() {
+        if (foreground.isInteger() && IntensityHistogram.supports(statistics.getMin(), statistics.getMax())) {
+            histogram.build(foreground, statistics.getMin(), statistics.getMax());
+            return histogram;
+        }
+
+        sortedQuantiles.build(foreground);
+        return sortedQuantiles;
+    }
+}
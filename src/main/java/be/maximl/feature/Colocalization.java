@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import be.maximl.data.BitMask;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Colocalization coefficients of channel pairs: Pearson's correlation, Manders' M1 and M2 and the overlap
+ * coefficient.
+ *
+ * All channels taking part in a pair are walked together in one pass over the image, pixel by pixel, which
+ * accumulates the means, sums of squares and co-moments of every pair at once. Each pair only counts the
+ * pixels in the union of the masks of its own two channels, so its values don't depend on the other pairs.
+ * Means and co-moments are updated incrementally, so Pearson's correlation doesn't suffer from the
+ * cancellation of the textbook sum-of-products formula. Manders' coefficients count a pixel as
+ * colocalized when the other channel is above zero. An instance keeps its accumulators between cells,
+ * use one per thread.
+ */
+public class Colocalization {
+
+    // per pair, index of its first and second channel in the channels that are read
+    private final int[] first;
+    private final int[] second;
+    // positions of the channels that are read, in the channel dimension of the image
+    private final int[] positions;
+
+    private final double[] values;
+    // per pair, the moments of the pixels in the pair's masks, [0] for the first channel and [1] for the second
+    private final long[] counts;
+    private final double[][] means;
+    private final double[][] centered;
+    private final double[][] sums;
+    private final double[][] squares;
+    private final double[] comoments;
+    private final double[] products;
+    private final double[] firstColocalized;
+    private final double[] secondColocalized;
+
+    /**
+     * @param pairs positions of the two channels of each pair, in the channel dimension of the image
+     */
+    public Colocalization(List<int[]> pairs) {
+        List<Integer> read = new ArrayList<>();
+        first = new int[pairs.size()];
+        second = new int[pairs.size()];
+        for (int p = 0; p < first.length; p++) {
+            first[p] = indexOf(read, pairs.get(p)[0]);
+            second[p] = indexOf(read, pairs.get(p)[1]);
+        }
+        positions = read.stream().mapToInt(Integer::intValue).toArray();
+
+        values = new double[positions.length];
+        counts = new long[first.length];
+        means = new double[2][first.length];
+        centered = new double[2][first.length];
+        sums = new double[2][first.length];
+        squares = new double[2][first.length];
+        comoments = new double[first.length];
+        products = new double[first.length];
+        firstColocalized = new double[first.length];
+        secondColocalized = new double[first.length];
+    }
+
+    private static int indexOf(List<Integer> read, int position) {
+        int res = read.indexOf(position);
+        if (res < 0) {
+            read.add(position);
+            res = read.size() - 1;
+        }
+        return res;
+    }
+
+    /**
+     * @return positions of the channels that are read, in the channel dimension of the image
+     */
+    public int[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Replaces the accumulated moments with those of a cell.
+     *
+     * @param img image with channels along dimension channelDim
+     * @param channelDim dimension of the channels
+     * @param masks for each channel that is read, in the order of {@link #getPositions()}, the mask of
+     *              the channel; a pair counts the pixels that are in the mask of either of its channels.
+     *              Null to use all pixels.
+     */
+    public <T extends RealType<T>> void compute(RandomAccessibleInterval<T> img, int channelDim, BitMask[] masks) {
+        List<Cursor<T>> cursors = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            cursors.add(Views.flatIterable(Views.hyperSlice(img, channelDim, position)).cursor());
+        }
+        reset();
+
+        Cursor<T> lead = cursors.get(0);
+        for (int i = 0; lead.hasNext(); i++) {
+            for (Cursor<T> cursor : cursors) {
+                cursor.fwd();
+            }
+            for (int c = 0; c < positions.length; c++) {
+                values[c] = cursors.get(c).get().getRealDouble();
+            }
+
+            for (int p = 0; p < first.length; p++) {
+                if (masks != null && !masks[first[p]].get(i) && !masks[second[p]].get(i))
+                    continue;
+
+                double a = values[first[p]];
+                double b = values[second[p]];
+                long n = ++counts[p];
+                double deltaA = a - means[0][p];
+                means[0][p] += deltaA / n;
+                centered[0][p] += deltaA * (a - means[0][p]);
+                double deltaB = b - means[1][p];
+                means[1][p] += deltaB / n;
+                centered[1][p] += deltaB * (b - means[1][p]);
+                comoments[p] += deltaA * (b - means[1][p]);
+
+                sums[0][p] += a;
+                sums[1][p] += b;
+                squares[0][p] += a * a;
+                squares[1][p] += b * b;
+                products[p] += a * b;
+                if (b > 0)
+                    firstColocalized[p] += a;
+                if (a > 0)
+                    secondColocalized[p] += b;
+            }
+        }
+    }
+
+    private void reset() {
+        Arrays.fill(counts, 0);
+        for (double[] array : new double[][]{means[0], means[1], centered[0], centered[1], sums[0], sums[1],
+                squares[0], squares[1], comoments, products, firstColocalized, secondColocalized}) {
+            Arrays.fill(array, 0);
+        }
+    }
+
+    private static double ratio(double numerator, double denominator) {
+        return denominator == 0 ? NaN : numerator / denominator;
+    }
+
+    /**
+     * @param pair index of the pair
+     * @return Pearson's correlation between the two channels of the pair
+     */
+    public double getPearson(int pair) {
+        return ratio(comoments[pair], Math.sqrt(centered[0][pair] * centered[1][pair]));
+    }
+
+    /**
+     * @param pair index of the pair
+     * @return fraction of the intensity of the first channel where the second channel is above zero
+     */
+    public double getMandersM1(int pair) {
+        return ratio(firstColocalized[pair], sums[0][pair]);
+    }
+
+    /**
+     * @param pair index of the pair
+     * @return fraction of the intensity of the second channel where the first channel is above zero
+     */
+    public double getMandersM2(int pair) {
+        return ratio(secondColocalized[pair], sums[1][pair]);
+    }
+
+    /**
+     * @param pair index of the pair
+     * @return Manders' overlap coefficient, the uncentered correlation of the two channels
+     */
+    public double getOverlap(int pair) {
+        return ratio(products[pair], Math.sqrt(squares[0][pair] * squares[1][pair]));
+    }
+}
@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imagej.ops.image.cooccurrenceMatrix.MatrixOrientation2D;
+
+import java.util.Arrays;
+
+/**
+ * Caches the gray-level co-occurrence matrices of one channel slice.
+ *
+ * The slice is quantized into gray levels once, the matrix of each orientation is built at most once,
+ * on first request, and shared by all Haralick features of that orientation. Matrices are computed
+ * the same way as ImageJ-ops' CooccurrenceMatrix2D: gray levels are spread over the min-max range of
+ * the slice, only pixel pairs that both lie in the foreground are counted, and each pixel is paired with
+ * its neighbours at both (dx, dy) and (-dx, -dy), so the matrices are symmetric. All arrays are reused
+ * when the cache is set to the next slice.
+ */
+public class CooccurrenceMatrices {
+
+    private static final int OUTSIDE = Integer.MAX_VALUE;
+
+    private final int nrGreyLevels;
+    private final int distance;
+    private final double[][][] matrices;
+    private final HaralickFeatures[] features;
+    private final boolean[] computed;
+    private int[] levels = new int[0];
+    private int width;
+    private int height;
+
+    public CooccurrenceMatrices(int nrGreyLevels, int distance) {
+        this.nrGreyLevels = nrGreyLevels;
+        this.distance = distance;
+
+        int orientations = MatrixOrientation2D.values().length;
+        matrices = new double[orientations][nrGreyLevels][nrGreyLevels];
+        features = new HaralickFeatures[orientations];
+        for (int i = 0; i < orientations; i++) {
+            features[i] = new HaralickFeatures(nrGreyLevels);
+        }
+        computed = new boolean[orientations];
+    }
+
+    /**
+     * Quantizes the foreground pixels into gray levels and invalidates previously computed matrices.
+     *
+     * @param buffer foreground pixels of the slice
+     */
+    public void setInput(ForegroundBuffer buffer) {
+        width = buffer.getWidth();
+        height = buffer.getHeight();
+        if (levels.length < width * height)
+            levels = new int[width * height];
+        Arrays.fill(levels, 0, width * height, OUTSIDE);
+
+        double[] values = buffer.getValues();
+        int[] xs = buffer.getX();
+        int[] ys = buffer.getY();
+        int size = buffer.size();
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            if (values[i] < min)
+                min = values[i];
+            if (values[i] > max)
+                max = values[i];
+        }
+        double diff = max - min;
+
+        for (int i = 0; i < size; i++) {
+            int bin = (int) (((values[i] - min) / diff) * nrGreyLevels);
+            levels[ys[i] * width + xs[i]] = bin < nrGreyLevels - 1 ? bin : nrGreyLevels - 1;
+        }
+
+        Arrays.fill(computed, false);
+    }
+
+    public double[][] getMatrix(MatrixOrientation2D orientation) {
+        return get(orientation).getMatrix();
+    }
+
+    /**
+     * @param orientation orientation of the pixel pairs
+     * @return Haralick features of the matrix in the given orientation, computed on first request
+     */
+    public HaralickFeatures get(MatrixOrientation2D orientation) {
+        int o = orientation.ordinal();
+        if (!computed[o]) {
+            computeMatrix(orientation, matrices[o]);
+            features[o].update(matrices[o]);
+            computed[o] = true;
+        }
+        return features[o];
+    }
+
+    private void computeMatrix(MatrixOrientation2D orientation, double[][] matrix) {
+        for (double[] row : matrix) {
+            Arrays.fill(row, 0);
+        }
+
+        int dx = orientation.getValueAtDim(0) * distance;
+        int dy = orientation.getValueAtDim(1) * distance;
+
+        int nrPairs = 0;
+        for (int y = 0; y < height; y++) {
+            int sy = y + dy;
+            if (sy < 0 || sy >= height)
+                continue;
+            for (int x = 0; x < width; x++) {
+                int sx = x + dx;
+                if (sx < 0 || sx >= width)
+                    continue;
+
+                int a = levels[y * width + x];
+                int b = levels[sy * width + sx];
+                if (a != OUTSIDE && b != OUTSIDE) {
+                    // the pair seen from (sx, sy) is the backward pair of that pixel
+                    matrix[a][b]++;
+                    matrix[b][a]++;
+                    nrPairs += 2;
+                }
+            }
+        }
+
+        if (nrPairs > 0) {
+            double divisor = 1.0 / nrPairs;
+            for (double[] row : matrix) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] *= divisor;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A registered feature: the intermediates it reads, how it computes its value from them, and the schema
+ * columns it writes to, one per channel.
+ */
+public class Feature {
+
+    private final String key;
+    private final Function<ChannelContext, Double> func;
+    private final List<Intermediate<?>> needs;
+    private final int[] columns;
+
+    public Feature(String key, Function<ChannelContext, Double> func, int[] columns, Intermediate<?>... needs) {
+        this.key = key;
+        this.func = func;
+        this.columns = columns;
+        this.needs = Collections.unmodifiableList(Arrays.asList(needs));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<Intermediate<?>> getNeeds() {
+        return needs;
+    }
+
+    /**
+     * @param pos index of the channel
+     * @return column of the feature for the channel
+     */
+    public int getColumn(int pos) {
+        return columns[pos];
+    }
+
+    public double compute(ChannelContext context) {
+        return func.apply(context);
+    }
+}
@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Predicates over cheap features that decide whether the remaining features of a cell are computed.
+ *
+ * A gate is read from the YAML configuration:
+ * <pre>
+ * gate:
+ *   mode: drop          # drop rejected cells, or "cheap" to write them with only their cheap features
+ *   conditions:
+ *     - feature: size
+ *       min: 50
+ *     - feature: mean
+ *       channel: 0      # optional, without a channel the condition must hold for every channel that
+ *                       # computes the feature
+ *       max: 4000
+ * </pre>
+ * A cell passes if it meets every condition. Bounds are inclusive, a missing (NaN) value fails.
+ */
+public class FeatureGate {
+
+    /**
+     * Bounds on the value of one feature.
+     */
+    public static class Condition {
+        private String feature;
+        private Long channel;
+        private double min = Double.NEGATIVE_INFINITY;
+        private double max = Double.POSITIVE_INFINITY;
+
+        public String getFeature() {
+            return feature;
+        }
+
+        public void setFeature(String feature) {
+            this.feature = feature;
+        }
+
+        public Long getChannel() {
+            return channel;
+        }
+
+        public void setChannel(Long channel) {
+            this.channel = channel;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public void setMin(double min) {
+            this.min = min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public void setMax(double max) {
+            this.max = max;
+        }
+    }
+
+    private String mode = "drop";
+    private List<Condition> conditions = new ArrayList<>();
+
+    // resolved by bind
+    private int[] columns;
+    private double[] mins;
+    private double[] maxs;
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode "drop" to drop rejected cells, "cheap" to write them with only their cheap features
+     */
+    public void setMode(String mode) {
+        if (!"drop".equals(mode) && !"cheap".equals(mode))
+            throw new IllegalArgumentException("Unknown gate mode " + mode + ", expected drop or cheap.");
+        this.mode = mode;
+    }
+
+    public boolean isDropping() {
+        return "drop".equals(mode);
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    public void setConditions(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * @param key feature key
+     * @return whether a condition reads the feature
+     */
+    public boolean uses(String key) {
+        return conditions.stream().anyMatch(c -> c.feature.equals(key));
+    }
+
+    /**
+     * Resolves the columns the conditions read.
+     *
+     * @param schema schema of the vectors the gate is applied to
+     * @param channels channels of the vectors
+     * @throws IllegalArgumentException if a condition reads a feature or channel that isn't computed
+     */
+    public void bind(FeatureSchema schema, List<Long> channels) {
+        List<Integer> columns = new ArrayList<>();
+        List<Double> mins = new ArrayList<>();
+        List<Double> maxs = new ArrayList<>();
+        for (Condition condition : conditions) {
+            List<Long> targets = new ArrayList<>();
+            if (condition.channel == null)
+                targets.addAll(channels);
+            else
+                targets.add(condition.channel);
+
+            int found = 0;
+            for (long channel : targets) {
+                int column = schema.indexOf("feat_" + condition.feature + "_" + channel);
+                if (column < 0)
+                    continue;
+                columns.add(column);
+                mins.add(condition.min);
+                maxs.add(condition.max);
+                found++;
+            }
+            if (found == 0)
+                throw new IllegalArgumentException("Gate condition on " + condition.feature
+                        + (condition.channel == null ? "" : " of channel " + condition.channel) + " doesn't match a computed feature.");
+        }
+
+        this.columns = columns.stream().mapToInt(i -> i).toArray();
+        this.mins = mins.stream().mapToDouble(d -> d).toArray();
+        this.maxs = maxs.stream().mapToDouble(d -> d).toArray();
+    }
+
+    /**
+     * @param vec vector in which at least the features of the conditions are set
+     * @return whether the vector passes the gate
+     */
+    public boolean test(FeatureVectorFactory.FeatureVector vec) {
+        for (int i = 0; i < columns.length; i++) {
+            double value = vec.get(columns[i]);
+            // comparisons with NaN are false, so missing values fail
+            if (!(value >= mins[i] && value <= maxs[i]))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Execution plan for a set of features, given the inputs that are available for a channel.
+ *
+ * The plan contains every derived intermediate that at least one feature needs, directly or through other
+ * intermediates, in an order in which each intermediate comes after its dependencies. Each is computed
+ * exactly once per channel. Features that need an input that isn't available, e.g. geometry features on
+ * images without masks, are left out of the plan.
+ */
+public class FeaturePlan {
+
+    private final Set<Intermediate<?>> inputs;
+    private final List<Intermediate<?>> steps = new ArrayList<>();
+    private final List<Feature> features = new ArrayList<>();
+
+    /**
+     * @param features features to plan for
+     * @param inputs intermediates that the caller supplies for every channel
+     */
+    public FeaturePlan(List<Feature> features, Collection<Intermediate<?>> inputs) {
+        this.inputs = Collections.newSetFromMap(new IdentityHashMap<>());
+        this.inputs.addAll(inputs);
+
+        Set<Intermediate<?>> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Feature feature : features) {
+            if (feature.getNeeds().stream().allMatch(this::isAvailable)) {
+                this.features.add(feature);
+                for (Intermediate<?> need : feature.getNeeds()) {
+                    visit(need, visited);
+                }
+            }
+        }
+    }
+
+    private boolean isAvailable(Intermediate<?> intermediate) {
+        if (intermediate.isInput())
+            return inputs.contains(intermediate);
+        return intermediate.getDependencies().stream().allMatch(this::isAvailable);
+    }
+
+    private void visit(Intermediate<?> intermediate, Set<Intermediate<?>> visited) {
+        if (!visited.add(intermediate))
+            return;
+        for (Intermediate<?> dependency : intermediate.getDependencies()) {
+            visit(dependency, visited);
+        }
+        if (!intermediate.isInput())
+            steps.add(intermediate);
+    }
+
+    /**
+     * Computes all intermediates of the plan that aren't in the context yet, e.g. because an earlier plan
+     * already computed them for the channel. The context must contain the inputs.
+     *
+     * @param context context of the channel
+     */
+    public void execute(ChannelContext context) {
+        for (Intermediate<?> step : steps) {
+            if (!context.contains(step))
+                computeStep(context, step);
+        }
+    }
+
+    private <V> void computeStep(ChannelContext context, Intermediate<V> step) {
+        context.put(step, step.compute(context));
+    }
+
+    /**
+     * @return features in the plan, in registration order
+     */
+    public List<Feature> getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return derived intermediates in the order in which they are computed
+     */
+    public List<Intermediate<?>> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return human readable description of the plan
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("inputs: ").append(inputs.stream().map(Intermediate::getName).sorted().collect(Collectors.joining(", ")));
+        for (Intermediate<?> step : steps) {
+            sb.append(System.lineSeparator()).append(step.getName()).append(" <- ")
+                    .append(step.getDependencies().stream().map(Intermediate::getName).collect(Collectors.joining(", ")));
+        }
+        for (Feature feature : features) {
+            sb.append(System.lineSeparator()).append(feature.getKey()).append(" <- ")
+                    .append(feature.getNeeds().stream().map(Intermediate::getName).collect(Collectors.joining(", ")));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return describe();
+    }
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.*;
+
+/**
+ * Fixed column layout of the feature vectors produced by a {@link FeatureVectorFactory}.
+ *
+ * Columns are resolved once, when the factory registers its features, so computing a vector only
+ * writes doubles at precomputed indices. The metadata columns always come first, followed by the
+ * feature columns in registration order.
+ */
+public class FeatureSchema {
+
+    final public static String[] META_COLUMNS = {"meta_id", "meta_file", "meta_directory"};
+
+    private final List<String> columns = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+
+    /**
+     * Adds a feature that is not bound to a channel.
+     *
+     * @param key feature name
+     * @return column index of the feature
+     */
+    public int add(String key) {
+        return addColumn("feat_" + key);
+    }
+
+    /**
+     * Adds a feature for every channel.
+     *
+     * @param key feature name
+     * @param channels channels the feature is computed on
+     * @return column index of the feature for each channel, in the order of channels
+     */
+    public int[] add(String key, List<Long> channels) {
+        int[] res = new int[channels.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = addColumn("feat_" + key + "_" + channels.get(i));
+        }
+        return res;
+    }
+
+    private int addColumn(String name) {
+        if (index.containsKey(name))
+            throw new IllegalArgumentException("Column " + name + " is already part of the schema.");
+
+        index.put(name, columns.size());
+        columns.add(name);
+        return columns.size() - 1;
+    }
+
+    /**
+     * @param name full column name, e.g. feat_mean_0
+     * @return column index, or -1 if the schema has no such column
+     */
+    public int indexOf(String name) {
+        return index.getOrDefault(name, -1);
+    }
+
+    /**
+     * @return number of feature columns
+     */
+    public int size() {
+        return columns.size();
+    }
+
+    public String getColumn(int i) {
+        return columns.get(i);
+    }
+
+    public List<String> getColumns() {
+        return Collections.unmodifiableList(columns);
+    }
+
+    /**
+     * @return names of the metadata columns followed by those of the feature columns
+     */
+    public String[] getHeader() {
+        String[] header = new String[META_COLUMNS.length + columns.size()];
+        System.arraycopy(META_COLUMNS, 0, header, 0, META_COLUMNS.length);
+        for (int i = 0; i < columns.size(); i++) {
+            header[META_COLUMNS.length + i] = columns.get(i);
+        }
+        return header;
+    }
+}
@@ -21,32 +21,26 @@
  */
 package be.maximl.feature;
 
+import be.maximl.data.BitMask;
 import be.maximl.data.Image;
-import ij.process.ImageProcessor;
-import inra.ijpb.morphology.Morphology;
-import inra.ijpb.morphology.Strel;
-import inra.ijpb.morphology.strel.SquareStrel;
 import net.imagej.ops.OpService;
-import net.imagej.ops.features.haralick.HaralickNamespace;
-import net.imagej.ops.features.tamura2d.TamuraNamespace;
-import net.imagej.ops.features.zernike.ZernikeNamespace;
+import net.imagej.ops.Ops;
 import net.imagej.ops.image.cooccurrenceMatrix.MatrixOrientation2D;
-import net.imglib2.*;
-import net.imglib2.RandomAccess;
-import net.imglib2.img.Img;
-import net.imglib2.img.ImgFactory;
-import net.imglib2.img.ImgView;
-import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.roi.Regions;
 import net.imglib2.roi.geom.real.Polygon2D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.NativeBoolType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.scijava.log.LogService;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -57,280 +51,653 @@ public class FeatureVectorFactory<T extends NativeType<T> & RealType<T>> {
 
     final private OpService opService;
     final private LogService logService;
-    final private Map<String, Function<Iterable<T>, Double>> iFeatureFunctions = new HashMap<>();
-    final private Map<String, Function<IterableInterval<T>, Double>> iiFeatureFunctions = new HashMap<>();
-    final private Map<String, Function<IterableInterval<NativeBoolType>, Double>> iiMaskFeatureFunctions = new HashMap<>();
-    final private Map<String, Function<Polygon2D, Double>> pFeatureFunctions = new HashMap<>();
-    final private Map<String, Function<RandomAccessibleInterval<T>, Double>> raiFeatureFunctions = new HashMap<>();
-    final private Map<String, Function<ImageProcessor, Double>> ipFeatureFunctions = new HashMap<>();
+    final private List<Feature> features = new ArrayList<>();
+
+    // inputs, supplied for every channel by computeVector
+    final private Intermediate<IntervalView<NativeBoolType>> mask = Intermediate.input("mask");
+    final private Intermediate<BitMask> bitMask = Intermediate.input("bitMask");
+    final private Intermediate<RandomAccessibleInterval<T>> plane = Intermediate.input("plane");
+    final private Intermediate<ForegroundBuffer> pixels = Intermediate.input("pixels");
+    final private Intermediate<IntensityStatistics> statistics = Intermediate.input("statistics");
+
+    // intermediates shared between features, each computed at most once per channel
+    final private Intermediate<Quantiles> quantiles;
+    final private Intermediate<CooccurrenceMatrices> glcm;
+    final private Intermediate<Polygon2D> contour;
+    final private Intermediate<IterableInterval<T>> foreground;
+    final private Intermediate<ShapeDescriptor> shape;
+    final private Intermediate<SobelStatistics> sobel;
+
+    final private List<Intermediate<?>> maskedInputs;
+    final private List<Intermediate<?>> plainInputs;
+    // per channel position, the cheap and remaining features, computed before and after the gate
+    private FeaturePlan[][] maskedPhases;
+    private FeaturePlan[][] plainPhases;
+    // per channel position, the position of the channel whose mask is used
+    final private int[] maskPositions;
+    private FeatureGate gate;
+    final private AtomicInteger rejected = new AtomicInteger();
+    final private ThreadLocal<ChannelWorkspace[]> workspaces;
+    final private ThreadLocal<ChannelContext[]> contexts;
+    // colocalization of channel pairs, per pair the columns of its Pearson, M1, M2 and overlap coefficients
+    private ThreadLocal<Colocalization> colocalizations;
+    private int[][] colocalizationColumns;
+
+    final private static int HARALICK_GREY_LEVELS = 50;
+    final private static int HARALICK_DISTANCE = 5;
+    // order and repetition of the zernikeMagnitude and zernikePhase features
+    final private static int ZERNIKE_ORDER = 3;
+    final private static int ZERNIKE_REPETITION = 1;
+    // zernike:N up to order 20, the radial polynomials are accurate to 1e-9 up to there
+    final private static String ZERNIKE_PATTERN = "^zernike:([0-9]|1[0-9]|20)$";
+
+    final private static List<Integer> DEFAULT_PERCENTILES = Arrays.asList(1, 5, 25, 75, 95, 99);
 
     final public static List<String> FEATURESET_SMALL = Arrays.asList("stdDev", "median", "min", "max", "size", "eccentricity");
     private final List<String> featuresToCompute;
+    private final List<Long> channels;
     private final boolean all;
+    // per channel position, the requested features, or null if the channel computes all features
+    private final List<Set<String>> requested = new ArrayList<>();
+    private final FeatureSchema schema = new FeatureSchema();
+    private final boolean computeMad;
     private int featCounter = 0;
+    private int zernikeOrder = 0;
+
+    private void addFeature(String key, Function<ChannelContext, Double> func, Intermediate<?>... needs) {
+        String p = key.split("-")[0];
+        if (all | featuresToCompute.contains(p)) {
+            List<Long> featureChannels = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < channels.size(); i++) {
+                if (requested.get(i) == null || requested.get(i).contains(p)) {
+                    featureChannels.add(channels.get(i));
+                    positions.add(i);
+                }
+            }
 
-    private <U> BiConsumer<String, Function<U, Double>> addFunc(Map<String, Function<U, Double>> map) {
-        return (key, func) -> {
-            String p = key.split("-")[0];
-            if (all | featuresToCompute.contains(p)) {
-                featCounter++;
-                map.put(key, func);
-                if (!all)
-                    featuresToCompute.remove(p);
+            // channels that don't compute the feature have no column
+            int[] columns = new int[channels.size()];
+            Arrays.fill(columns, -1);
+            int[] featureColumns = schema.add(key, featureChannels);
+            for (int i = 0; i < featureColumns.length; i++) {
+                columns[positions.get(i)] = featureColumns[i];
             }
-        };
+
+            featCounter++;
+            features.add(new Feature(key, func, columns, needs));
+            // whatever is left once all features are registered wasn't recognized
+            featuresToCompute.remove(p);
+        }
+    }
+
+    private <U> BiConsumer<String, Function<U, Double>> addFunc(Intermediate<U> input) {
+        return (key, func) -> addFeature(key, c -> func.apply(c.get(input)), input);
     }
 
-    public FeatureVectorFactory(OpService opService, LogService logService, List<String> featuresToCompute, boolean all) {
+    /**
+     * @param channelFeatures features to compute per channel, an empty list computes all features. Channels
+     *                        that are loaded but not in the map, e.g. because only their mask is used, get no
+     *                        features.
+     * @param channels channels of the images, in the order in which they are loaded
+     * @throws IllegalArgumentException if a channel requests a feature that doesn't exist
+     */
+    public FeatureVectorFactory(OpService opService, LogService logService, Map<Long, List<String>> channelFeatures, List<Long> channels) {
         this.opService = opService;
         this.logService = logService;
-        this.featuresToCompute = featuresToCompute;
-        this.all = all;
-
-        BiConsumer<String, Function<Iterable<T>, Double>> iFuncAdder = addFunc(iFeatureFunctions);
-        BiConsumer<String, Function<IterableInterval<T>, Double>> iiFuncAdder = addFunc(iiFeatureFunctions);
-        BiConsumer<String, Function<IterableInterval<NativeBoolType>, Double>> iiMaskFuncAdder = addFunc(iiMaskFeatureFunctions);
-        BiConsumer<String, Function<Polygon2D, Double>> pFuncAdder = addFunc(pFeatureFunctions);
-        BiConsumer<String, Function<RandomAccessibleInterval<T>, Double>> raiFuncAdder = addFunc(raiFeatureFunctions);
-        BiConsumer<String, Function<ImageProcessor, Double>> ipFuncAdder = addFunc(ipFeatureFunctions);
-
-        // intensity features
-        iFuncAdder.accept("mean", s -> opService.stats().mean(s).getRealDouble());
-        iFuncAdder.accept("geometricMean", s -> opService.stats().geometricMean(s).getRealDouble());
-        iFuncAdder.accept("harmonicMean", s -> opService.stats().harmonicMean(s).getRealDouble());
-        iFuncAdder.accept("stdDev", s -> opService.stats().stdDev(s).getRealDouble());
-        iFuncAdder.accept("median", s -> opService.stats().median(s).getRealDouble());
-        iFuncAdder.accept("sum", s -> opService.stats().sum(s).getRealDouble());
-        iFuncAdder.accept("min", s -> opService.stats().min(s).getRealDouble());
-        iFuncAdder.accept("max", s -> opService.stats().max(s).getRealDouble());
-        iFuncAdder.accept("kurtosis", s -> opService.stats().kurtosis(s).getRealDouble());
-        iFuncAdder.accept("skewness", s -> opService.stats().skewness(s).getRealDouble());
-        iFuncAdder.accept("moment3AboutMean", s -> opService.stats().moment3AboutMean(s).getRealDouble());
-        iFuncAdder.accept("mad", s -> {
-            double mean = opService.stats().mean(s).getRealDouble();
-            double distSum = .0;
-            double count = 0;
-            for (T t : s) {
-                count++;
-                distSum += Math.abs(t.getRealDouble() - mean);
+        this.channels = channels;
+
+        Set<String> union = new LinkedHashSet<>();
+        boolean any = false;
+        for (Long channel : channels) {
+            List<String> list = channelFeatures.get(channel);
+            if (list != null && list.isEmpty()) {
+                any = true;
+                requested.add(null);
+            } else {
+                requested.add(list == null ? new HashSet<>() : new HashSet<>(list));
+                if (list != null)
+                    union.addAll(list);
             }
-            return distSum / count;
-        });
-
-        // texture
-        HaralickNamespace haralick = opService.haralick();
-        if (featuresToCompute.contains("haralickContrast")) {
-            featuresToCompute.remove("haralickContrast");
-            featuresToCompute.addAll(Arrays.stream(MatrixOrientation2D.values()).map(o -> "haralickContrast" + o).collect(Collectors.toList()));
-        }
-        for (MatrixOrientation2D orientation : MatrixOrientation2D.values()) {
-            iiFuncAdder.accept(
-                    "haralickContrast" + orientation,
-                    s -> haralick.contrast(s, 50, 5, orientation).getRealDouble()
-            );
         }
+        this.all = any;
+        this.featuresToCompute = new ArrayList<>(union);
 
-        if (featuresToCompute.contains("haralickCorrelation")) {
-            featuresToCompute.remove("haralickCorrelation");
-            featuresToCompute.addAll(Arrays.stream(MatrixOrientation2D.values()).map(o -> "haralickCorrelation" + o).collect(Collectors.toList()));
-        }
-        for (MatrixOrientation2D orientation : MatrixOrientation2D.values()) {
-            iiFuncAdder.accept(
-                    "haralickCorrelation" + orientation,
-                    s -> haralick.correlation(s, 50, 5, orientation).getRealDouble()
-            );
+        maskPositions = new int[channels.size()];
+        for (int i = 0; i < maskPositions.length; i++) {
+            maskPositions[i] = i;
         }
 
-        if (featuresToCompute.contains("haralickEntropy")) {
-            featuresToCompute.remove("haralickEntropy");
-            featuresToCompute.addAll(Arrays.stream(MatrixOrientation2D.values()).map(o -> "haralickEntropy" + o).collect(Collectors.toList()));
-        }
-        for (MatrixOrientation2D orientation : MatrixOrientation2D.values()) {
-            iiFuncAdder.accept(
-                    "haralickEntropy" + orientation,
-                    s -> haralick.entropy(s, 50, 5, orientation).getRealDouble()
-            );
-        }
-
-        TamuraNamespace tamura = opService.tamura();
-        raiFuncAdder.accept("tamuraContrast", s -> tamura.contrast(s).getRealDouble());
-
-        ZernikeNamespace zernike = opService.zernike();
-        iiFuncAdder.accept("zernikeMagnitude", s -> zernike.magnitude(s, 3, 1).getRealDouble());
-        iiFuncAdder.accept("zernikePhase", s -> zernike.phase(s, 3, 1).getRealDouble());
-
-        raiFuncAdder.accept("sobelRMS", s -> {
-            RandomAccessibleInterval<T> sobel = opService.filter().sobel(s);
-            double res = .0;
-            double count = 0;
-            for (T t : ImgView.wrap(sobel)) {
-                res += Math.pow(t.getRealDouble(), 2);
-                count++;
+        workspaces = ThreadLocal.withInitial(() -> {
+            ChannelWorkspace[] res = new ChannelWorkspace[channels.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = new ChannelWorkspace(HARALICK_GREY_LEVELS, HARALICK_DISTANCE, zernikeOrder);
             }
-            return Math.sqrt(res/count);
+            return res;
+        });
+        contexts = ThreadLocal.withInitial(() -> {
+            ChannelContext[] res = new ChannelContext[channels.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = new ChannelContext();
+            }
+            return res;
         });
 
-        Function<Integer, Function<ImageProcessor, Double>> gradientRMS = i -> s -> {
-            Strel se = SquareStrel.fromDiameter(i);
-            ImageProcessor grad = Morphology.gradient(s, se);
+        CachedFunctionOp<RandomAccessibleInterval<NativeBoolType>, Polygon2D> contourOp =
+                new CachedFunctionOp<>(opService, Ops.Geometric.Contour.class, Polygon2D.class, false);
 
-            float [][] values = grad.getFloatArray();
-            float sum = 0;
-            for (float[] arr: values) {
-                for (float v: arr) {
-                    sum+=Math.pow(v, 2);
-                }
+        quantiles = Intermediate.derived("quantiles", c -> c.getWorkspace().computeQuantiles(), pixels, statistics);
+        glcm = Intermediate.derived("glcm", c -> {
+            CooccurrenceMatrices res = c.getWorkspace().getCooccurrenceMatrices();
+            res.setInput(c.get(pixels));
+            return res;
+        }, pixels);
+        contour = Intermediate.derived("contour", c -> contourOp.calculate(c.get(mask)), mask);
+        // the foreground pixels as the ops see them, only built for the channels that run an op over it
+        foreground = Intermediate.derived("foreground", c -> c.contains(mask)
+                ? Regions.sample(Regions.iterable(c.get(mask)), c.get(plane))
+                : Views.iterable(c.get(plane)), plane);
+        shape = Intermediate.derived("shape", c -> c.getWorkspace().getShape().compute(c.get(contour)), contour);
+        sobel = Intermediate.derived("sobel", c -> {
+            SobelStatistics res = c.getWorkspace().getSobel();
+            res.accumulate(c.get(plane));
+            return res;
+        }, plane);
+
+        BiConsumer<String, Function<IntensityStatistics, Double>> sFuncAdder = addFunc(statistics);
+        BiConsumer<String, Function<CooccurrenceMatrices, Double>> cFuncAdder = addFunc(glcm);
+        BiConsumer<String, Function<Quantiles, Double>> qFuncAdder = addFunc(quantiles);
+        BiConsumer<String, Function<BitMask, Double>> bitMaskFuncAdder = addFunc(bitMask);
+        BiConsumer<String, Function<ShapeDescriptor, Double>> shapeFuncAdder = addFunc(shape);
+        BiConsumer<String, Function<SobelStatistics, Double>> sobelFuncAdder = addFunc(sobel);
+
+        // intensity features, all moment-based statistics are computed in one pass
+        sFuncAdder.accept("mean", IntensityStatistics::getMean);
+        sFuncAdder.accept("geometricMean", IntensityStatistics::getGeometricMean);
+        sFuncAdder.accept("harmonicMean", IntensityStatistics::getHarmonicMean);
+        sFuncAdder.accept("stdDev", IntensityStatistics::getStdDev);
+        sFuncAdder.accept("sum", IntensityStatistics::getSum);
+        sFuncAdder.accept("min", IntensityStatistics::getMin);
+        sFuncAdder.accept("max", IntensityStatistics::getMax);
+        sFuncAdder.accept("kurtosis", IntensityStatistics::getKurtosis);
+        sFuncAdder.accept("skewness", IntensityStatistics::getSkewness);
+        sFuncAdder.accept("moment3AboutMean", IntensityStatistics::getMoment3AboutMean);
+        sFuncAdder.accept("mad", IntensityStatistics::getMeanAbsoluteDeviation);
+
+        // order statistics, read from one histogram per channel for integer types, sorted values otherwise
+        qFuncAdder.accept("median", Quantiles::median);
+        qFuncAdder.accept("iqr", Quantiles::interQuartileRange);
+        Set<String> percentileFeatures = new LinkedHashSet<>();
+        if (all)
+            DEFAULT_PERCENTILES.forEach(p -> percentileFeatures.add("percentile:" + p));
+        featuresToCompute.stream().filter(s -> s.matches("^percentile:(100|[1-9]?[0-9])$")).forEach(percentileFeatures::add);
+        for (String p : percentileFeatures) {
+            double percent = Double.parseDouble(p.split(":")[1]);
+            qFuncAdder.accept(p, q -> q.percentile(percent));
+        }
+
+        // texture, all Haralick features read from the co-occurrence matrices cached per channel
+        Map<String, Function<HaralickFeatures, Double>> haralickFeatures = new LinkedHashMap<>();
+        haralickFeatures.put("haralickASM", HaralickFeatures::getASM);
+        haralickFeatures.put("haralickContrast", HaralickFeatures::getContrast);
+        haralickFeatures.put("haralickCorrelation", HaralickFeatures::getCorrelation);
+        haralickFeatures.put("haralickVariance", HaralickFeatures::getVariance);
+        haralickFeatures.put("haralickIFDM", HaralickFeatures::getIFDM);
+        haralickFeatures.put("haralickTextureHomogeneity", HaralickFeatures::getTextureHomogeneity);
+        haralickFeatures.put("haralickSumAverage", HaralickFeatures::getSumAverage);
+        haralickFeatures.put("haralickSumVariance", HaralickFeatures::getSumVariance);
+        haralickFeatures.put("haralickSumEntropy", HaralickFeatures::getSumEntropy);
+        haralickFeatures.put("haralickEntropy", HaralickFeatures::getEntropy);
+        haralickFeatures.put("haralickDifferenceVariance", HaralickFeatures::getDifferenceVariance);
+        haralickFeatures.put("haralickDifferenceEntropy", HaralickFeatures::getDifferenceEntropy);
+        haralickFeatures.put("haralickICM1", HaralickFeatures::getICM1);
+        haralickFeatures.put("haralickICM2", HaralickFeatures::getICM2);
+        haralickFeatures.put("haralickClusterShade", HaralickFeatures::getClusterShade);
+        haralickFeatures.put("haralickClusterPromenence", HaralickFeatures::getClusterPromenence);
+        haralickFeatures.put("haralickMaxProbability", HaralickFeatures::getMaxProbability);
+
+        for (Map.Entry<String, Function<HaralickFeatures, Double>> entry : haralickFeatures.entrySet()) {
+            String name = entry.getKey();
+            Function<HaralickFeatures, Double> func = entry.getValue();
+            List<String> orientations = Arrays.stream(MatrixOrientation2D.values()).map(o -> name + o).collect(Collectors.toList());
+            if (featuresToCompute.contains(name)) {
+                featuresToCompute.remove(name);
+                featuresToCompute.addAll(orientations);
+            }
+            for (Set<String> channelFeatures : requested) {
+                if (channelFeatures != null && channelFeatures.remove(name))
+                    channelFeatures.addAll(orientations);
+            }
+            for (MatrixOrientation2D orientation : MatrixOrientation2D.values()) {
+                cFuncAdder.accept(name + orientation, s -> func.apply(s.get(orientation)));
             }
-            return Math.sqrt(sum / (grad.getHeight() * grad.getWidth()));
-        };
-        List<String> gradientRMSFeatures = featuresToCompute.stream().filter(s -> s.matches("^gradientRMS:[0-9]")).collect(Collectors.toList());
-        for (String g : gradientRMSFeatures) {
-            int i = Integer.parseInt(g.split(":")[1]);
-            ipFuncAdder.accept(g, gradientRMS.apply(i));
         }
 
-        // geometry features
-        pFuncAdder.accept("eccentricity", s -> opService.geom().eccentricity(s).getRealDouble());
-        pFuncAdder.accept("circularity", s -> opService.geom().circularity(s).getRealDouble());
-        pFuncAdder.accept("roundness", s -> opService.geom().roundness(s).getRealDouble());
-        pFuncAdder.accept("convexity", s -> opService.geom().convexity(s).getRealDouble());
-        pFuncAdder.accept("size", s -> opService.geom().size(s).getRealDouble());
-        pFuncAdder.accept("sizeConvexHull", s -> opService.geom().sizeConvexHull(s).getRealDouble());
-        pFuncAdder.accept("majorAxis", s -> opService.geom().majorAxis(s).getRealDouble());
-        pFuncAdder.accept("minorAxis", s -> opService.geom().minorAxis(s).getRealDouble());
-        pFuncAdder.accept("mainElongation", s -> opService.geom().mainElongation(s).getRealDouble());
+        // Tamura texture, all three features share one integral image of the plane per channel
+        Intermediate<TamuraTexture> tamura = Intermediate.derived("tamura",
+                c -> c.getWorkspace().getTamura().compute(c.get(plane)), plane);
+        BiConsumer<String, Function<TamuraTexture, Double>> tamuraFuncAdder = addFunc(tamura);
+        tamuraFuncAdder.accept("tamuraContrast", TamuraTexture::getContrast);
+        tamuraFuncAdder.accept("tamuraCoarseness", TamuraTexture::getCoarseness);
+        tamuraFuncAdder.accept("tamuraDirectionality", TamuraTexture::getDirectionality);
+
+        // zernikeMagnitude and zernikePhase keep the scale and units (degrees) of the ops they always came from
+        CachedFunctionOp<IterableInterval<T>, DoubleType> zernikeMagnitudeOp = new CachedFunctionOp<>(
+                opService, Ops.Zernike.Magnitude.class, DoubleType.class, ZERNIKE_ORDER, ZERNIKE_REPETITION);
+        CachedFunctionOp<IterableInterval<T>, DoubleType> zernikePhaseOp = new CachedFunctionOp<>(
+                opService, Ops.Zernike.Phase.class, DoubleType.class, ZERNIKE_ORDER, ZERNIKE_REPETITION);
+        BiConsumer<String, Function<IterableInterval<T>, Double>> fgFuncAdder = addFunc(foreground);
+        fgFuncAdder.accept("zernikeMagnitude", s -> zernikeMagnitudeOp.calculate(s).getRealDouble());
+        fgFuncAdder.accept("zernikePhase", s -> zernikePhaseOp.calculate(s).getRealDouble());
+
+        // Zernike moments, all orders up to the highest requested one come from one projection per channel;
+        // zernike:N requests every magnitude and phase up to order N, see ZernikeMoments for their definition
+        int maxRequested = -1;
+        for (String z : featuresToCompute) {
+            if (z.matches(ZERNIKE_PATTERN))
+                maxRequested = Math.max(maxRequested, Integer.parseInt(z.split(":")[1]));
+        }
+        zernikeOrder = Math.max(0, maxRequested);
+        expandZernike(featuresToCompute);
+        requested.stream().filter(Objects::nonNull).forEach(FeatureVectorFactory::expandZernike);
+        Intermediate<ZernikeMoments> zernike = Intermediate.derived("zernike", c -> {
+            ZernikeMoments res = c.getWorkspace().getZernike();
+            res.compute(c.get(pixels));
+            return res;
+        }, pixels);
+        BiConsumer<String, Function<ZernikeMoments, Double>> zFuncAdder = addFunc(zernike);
+        for (int[] moment : ZernikeBasis.moments(maxRequested)) {
+            zFuncAdder.accept(zernikeKey("zernikeMagnitude", moment), z -> z.getMagnitude(moment[0], moment[1]));
+            zFuncAdder.accept(zernikeKey("zernikePhase", moment), z -> z.getPhase(moment[0], moment[1]));
+        }
 
-        iiMaskFuncAdder.accept("sizeMask", s -> opService.geom().size(s).getRealDouble());
+        // Sobel gradient magnitude, all statistics come from one streaming pass over the plane
+        sobelFuncAdder.accept("sobelRMS", SobelStatistics::getRMS);
+        sobelFuncAdder.accept("sobelMean", SobelStatistics::getMean);
+        sobelFuncAdder.accept("sobelMax", SobelStatistics::getMax);
+        Set<String> sobelPercentileFeatures = new LinkedHashSet<>();
+        if (all)
+            DEFAULT_PERCENTILES.forEach(p -> sobelPercentileFeatures.add("sobelPercentile:" + p));
+        featuresToCompute.stream().filter(s -> s.matches("^sobelPercentile:(100|[1-9]?[0-9])$")).forEach(sobelPercentileFeatures::add);
+        for (String p : sobelPercentileFeatures) {
+            double percent = Double.parseDouble(p.split(":")[1]);
+            sobelFuncAdder.accept(p, q -> q.percentile(percent));
+        }
 
-        if(!all & (featuresToCompute.size() > 0))
-            throw new AssertionError("Not all features in the list were recognized.");
+        // gradient RMS for all requested diameters is computed in one go per channel
+        List<String> gradientRMSFeatures = featuresToCompute.stream().filter(s -> s.matches("^gradientRMS:[1-9][0-9]{0,2}$")).collect(Collectors.toList());
+        int[] diameters = gradientRMSFeatures.stream().mapToInt(g -> Integer.parseInt(g.split(":")[1])).toArray();
+        Intermediate<double[]> gradients = Intermediate.derived("gradients",
+                c -> c.getWorkspace().getGradient().compute(c.get(plane), diameters), plane);
+        BiConsumer<String, Function<double[], Double>> gradientFuncAdder = addFunc(gradients);
+        for (int k = 0; k < diameters.length; k++) {
+            int index = k;
+            gradientFuncAdder.accept(gradientRMSFeatures.get(k), g -> g[index]);
+        }
 
-        logService.info("Computing " + featCounter + " features per channel.");
+        // geometry features, all read from one shape descriptor of the contour per channel
+        shapeFuncAdder.accept("eccentricity", ShapeDescriptor::getEccentricity);
+        shapeFuncAdder.accept("circularity", ShapeDescriptor::getCircularity);
+        shapeFuncAdder.accept("roundness", ShapeDescriptor::getRoundness);
+        shapeFuncAdder.accept("convexity", ShapeDescriptor::getConvexity);
+        shapeFuncAdder.accept("size", ShapeDescriptor::getArea);
+        shapeFuncAdder.accept("sizeConvexHull", ShapeDescriptor::getHullArea);
+        shapeFuncAdder.accept("majorAxis", ShapeDescriptor::getMajorAxis);
+        shapeFuncAdder.accept("minorAxis", ShapeDescriptor::getMinorAxis);
+        shapeFuncAdder.accept("mainElongation", ShapeDescriptor::getMainElongation);
+        shapeFuncAdder.accept("perimeter", ShapeDescriptor::getPerimeter);
+        shapeFuncAdder.accept("solidity", ShapeDescriptor::getSolidity);
+        shapeFuncAdder.accept("extent", ShapeDescriptor::getExtent);
+        shapeFuncAdder.accept("feretDiameterMax", ShapeDescriptor::getFeretDiameterMax);
+        shapeFuncAdder.accept("feretDiameterMin", ShapeDescriptor::getFeretDiameterMin);
+
+        bitMaskFuncAdder.accept("sizeMask", m -> (double) m.size());
+
+        // also checked if some channel computes all features, a typo in another channel's list would
+        // otherwise silently leave that channel without the feature
+        if (!featuresToCompute.isEmpty())
+            throw new IllegalArgumentException("Features not recognized: " + featuresToCompute);
+
+        computeMad = features.stream().anyMatch(f -> f.getKey().equals("mad"));
+
+        maskedInputs = Arrays.asList(mask, bitMask, plane, pixels, statistics);
+        plainInputs = Arrays.asList(plane, pixels, statistics);
+        maskedPhases = split(maskedInputs);
+        plainPhases = split(plainInputs);
+
+        logService.info("Computing " + featCounter + " features over " + channels.size() + " channels.");
     }
 
-    public static class FeatureVector {
-        private final Map<String, Object> map = new HashMap<>();
+    private static String zernikeKey(String name, int[] moment) {
+        return name + "_n" + moment[0] + "_m" + moment[1];
+    }
 
-        public void add(String key, Long channel, double value) {
-            map.put("feat_"+ key + "_" + channel, value);
+    /**
+     * Replaces zernike:N requests by the keys of every magnitude and phase up to order N.
+     */
+    private static void expandZernike(Collection<String> requested) {
+        for (String z : new ArrayList<>(requested)) {
+            if (z.matches(ZERNIKE_PATTERN)) {
+                requested.remove(z);
+                for (int[] moment : ZernikeBasis.moments(Integer.parseInt(z.split(":")[1]))) {
+                    requested.add(zernikeKey("zernikeMagnitude", moment));
+                    requested.add(zernikeKey("zernikePhase", moment));
+                }
+            }
         }
+    }
 
-        public void add(String key, double value) {
-            map.put("feat_"+key, value);
+    /**
+     * Only computes the remaining features of a cell if its cheap features pass the gate. Must be set
+     * before the first vector is computed.
+     *
+     * @param gate gate to apply, null to compute all features of every cell
+     * @param masked whether the images have masks
+     * @throws IllegalArgumentException if the gate reads a feature that isn't computed, or that can't be computed
+     * from the inputs of the images, e.g. a geometry feature of images without masks, which would reject every cell
+     */
+    public void setGate(FeatureGate gate, boolean masked) {
+        if (gate != null) {
+            gate.bind(schema, channels);
+            List<Intermediate<?>> inputs = masked ? maskedInputs : plainInputs;
+            for (Feature feature : features) {
+                if (gate.uses(feature.getKey()) && new FeaturePlan(Collections.singletonList(feature), inputs).getFeatures().isEmpty())
+                    throw new IllegalArgumentException("Gate condition on " + feature.getKey()
+                            + " can't be computed" + (masked ? "." : " for images without masks."));
+            }
         }
+        this.gate = gate;
+        maskedPhases = split(maskedInputs);
+        plainPhases = split(plainInputs);
+    }
+
+    /**
+     * @return number of cells rejected by the gate so far
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
 
-        public void add(String key, String value) {
-            map.put("meta_"+key, value);
+    /**
+     * Uses the mask of another channel for the features of a channel, e.g. a brightfield mask for a
+     * fluorescence channel. Must be set before the first vector is computed.
+     *
+     * @param maskChannels for each channel that doesn't use its own mask, the channel whose mask it uses
+     * @throws IllegalArgumentException if a channel or mask channel isn't loaded
+     */
+    public void setMaskChannels(Map<Long, Long> maskChannels) {
+        for (Map.Entry<Long, Long> entry : maskChannels.entrySet()) {
+            int pos = channels.indexOf(entry.getKey());
+            int maskPos = channels.indexOf(entry.getValue());
+            if (pos < 0 || maskPos < 0)
+                throw new IllegalArgumentException("Channel " + entry.getKey() + " or its mask channel " + entry.getValue() + " isn't loaded.");
+            maskPositions[pos] = maskPos;
         }
+    }
 
-        public void add(String key, int value) {
-            map.put("meta_"+key, value);
+    /**
+     * Computes the colocalization of channel pairs, after the features of the individual channels. For
+     * masked images a pair counts the pixels in the mask of either of its two channels. Must be set before
+     * the first vector is computed.
+     *
+     * @param pairs pairs of two different channels
+     * @throws IllegalArgumentException if a pair doesn't have two different loaded channels
+     */
+    public void setColocalization(List<List<Long>> pairs) {
+        List<int[]> positions = new ArrayList<>();
+        colocalizationColumns = new int[pairs.size()][];
+        for (int p = 0; p < pairs.size(); p++) {
+            List<Long> pair = pairs.get(p);
+            if (pair.size() != 2 || pair.get(0).equals(pair.get(1)))
+                throw new IllegalArgumentException("Colocalization pair " + pair + " doesn't have two different channels.");
+            int a = channels.indexOf(pair.get(0));
+            int b = channels.indexOf(pair.get(1));
+            if (a < 0 || b < 0)
+                throw new IllegalArgumentException("Channel " + (a < 0 ? pair.get(0) : pair.get(1)) + " of colocalization pair " + pair + " isn't loaded.");
+            positions.add(new int[]{a, b});
+
+            String suffix = "_" + pair.get(0) + "_" + pair.get(1);
+            colocalizationColumns[p] = new int[]{
+                    schema.add("pearson" + suffix),
+                    schema.add("mandersM1" + suffix),
+                    schema.add("mandersM2" + suffix),
+                    schema.add("overlap" + suffix)};
+            featCounter += 4;
         }
+        colocalizations = positions.isEmpty() ? null : ThreadLocal.withInitial(() -> new Colocalization(positions));
+    }
 
-        public Map<String, Object> getMap() {
-            return map;
+    /**
+     * Splits the features of each channel into cheap ones, which only read inputs or are read by the gate,
+     * and the rest.
+     */
+    private FeaturePlan[][] split(List<Intermediate<?>> inputs) {
+        FeaturePlan[][] res = new FeaturePlan[channels.size()][];
+        for (int i = 0; i < res.length; i++) {
+            List<Feature> cheap = new ArrayList<>();
+            List<Feature> rest = new ArrayList<>();
+            for (Feature feature : features) {
+                if (feature.getColumn(i) < 0)
+                    continue;
+                boolean isCheap = (gate != null && gate.uses(feature.getKey()))
+                        || feature.getNeeds().stream().allMatch(Intermediate::isInput);
+                (isCheap ? cheap : rest).add(feature);
+            }
+            res[i] = new FeaturePlan[]{new FeaturePlan(cheap, inputs), new FeaturePlan(rest, inputs)};
         }
+        return res;
+    }
 
-        public String[] getLine() {
+    public FeatureSchema getSchema() {
+        return schema;
+    }
 
-            String[] res = new String[map.size()];
-            int i =0;
-            for (Map.Entry<String, Object> entry: map.entrySet()) {
-                res[i] = entry.getValue().toString();
-                i++;
-            }
+    /**
+     * @param masked whether the images have masks
+     * @return human readable description of the plans by which the features of each channel are computed
+     */
+    public String describePlans(boolean masked) {
+        FeaturePlan[][] phases = masked ? maskedPhases : plainPhases;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < phases.length; i++) {
+            sb.append("channel ").append(channels.get(i)).append(":");
+            if (masked && maskPositions[i] != i)
+                sb.append(" (mask of channel ").append(channels.get(maskPositions[i])).append(")");
+            sb.append(System.lineSeparator()).append(phases[i][0].describe());
+            if (!phases[i][1].getFeatures().isEmpty())
+                sb.append(System.lineSeparator()).append("-- gate --").append(System.lineSeparator()).append(phases[i][1].describe());
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
 
-            return res;
+    /**
+     * Feature values of one image, laid out according to a {@link FeatureSchema}.
+     */
+    public static class FeatureVector {
+        private final FeatureSchema schema;
+        private final double[] values;
+        private int id;
+        private String file;
+        private String directory;
+
+        public FeatureVector(FeatureSchema schema) {
+            this.schema = schema;
+            this.values = new double[schema.size()];
+            Arrays.fill(values, NaN);
         }
 
-        public <U> void computeFeature(
-                String key,
-                Long channel,
-                Function<U, Double> func,
-                U slice,
-                boolean compute) {
-            if(compute) {
-                add(key, channel, func.apply(slice));
-            } else {
-                add(key, channel, NaN);
-            }
+        public void setMeta(int id, String file, String directory) {
+            this.id = id;
+            this.file = file;
+            this.directory = directory;
         }
-    }
 
-    private void computeOnMask(FeatureVector vec, Image<T> image, boolean compute, int pos, long channel) {
+        public void set(int column, double value) {
+            values[column] = value;
+        }
 
-        Polygon2D polygon = opService.geom().contour(opService.transform().hyperSliceView(image.getMaskImg(), 2, pos), false);
-        for (Map.Entry<String, Function<Polygon2D, Double>> entry : pFeatureFunctions.entrySet()) {
-            vec.computeFeature(entry.getKey(), channel, entry.getValue(), polygon, compute);
+        public double get(int column) {
+            return values[column];
         }
 
-        IterableInterval<NativeBoolType> iiMask = Views.hyperSlice(image.getMaskImg(), 2, pos);
-        for(Map.Entry<String, Function<IterableInterval<NativeBoolType>, Double>> entry : iiMaskFeatureFunctions.entrySet()) {
-            vec.computeFeature(entry.getKey(), channel, entry.getValue(), iiMask, compute);
+        public double[] getValues() {
+            return values;
         }
-    }
 
-    private void compute(FeatureVector vec, IntervalView<T> iv, boolean compute, long channel) {
+        public FeatureSchema getSchema() {
+            return schema;
+        }
 
-        for(Map.Entry<String, Function<Iterable<T>, Double>> entry : iFeatureFunctions.entrySet()) {
-            vec.computeFeature(entry.getKey(), channel, entry.getValue(), iv, compute);
+        public int getId() {
+            return id;
         }
-        for(Map.Entry<String, Function<IterableInterval<T>, Double>> entry : iiFeatureFunctions.entrySet()) {
-            vec.computeFeature(entry.getKey(), channel, entry.getValue(), iv, compute);
+
+        public String getFile() {
+            return file;
         }
 
-        for(Map.Entry<String, Function<RandomAccessibleInterval<T>, Double>> entry : raiFeatureFunctions.entrySet()) {
-            vec.computeFeature(entry.getKey(), channel, entry.getValue(), iv, compute);
+        public String getDirectory() {
+            return directory;
         }
 
-        ImageProcessor ip = ImageJFunctions.wrap(iv, "image").getProcessor();
-        for(Map.Entry<String, Function<ImageProcessor, Double>> entry : ipFeatureFunctions.entrySet()) {
-            vec.computeFeature(entry.getKey(), channel, entry.getValue(), ip, compute);
+        /**
+         * @return all values as strings, in the order of {@link FeatureSchema#getHeader()}
+         */
+        public String[] getLine() {
+            int offset = FeatureSchema.META_COLUMNS.length;
+            String[] res = new String[offset + values.length];
+            res[0] = Integer.toString(id);
+            res[1] = file;
+            res[2] = directory;
+            for (int i = 0; i < values.length; i++) {
+                res[offset + i] = Double.toString(values[i]);
+            }
+            return res;
         }
+    }
 
+    /**
+     * @param slice channel slice
+     * @param mask mask of the channel slice
+     * @return view on the slice in which background pixels read as zero, nothing is copied
+     */
+    private RandomAccessibleInterval<T> maskedView(IntervalView<T> slice, IntervalView<NativeBoolType> mask) {
+        return Converters.convert(
+                (RandomAccessibleInterval<T>) slice,
+                (RandomAccessibleInterval<NativeBoolType>) mask,
+                (in, m, out) -> {
+                    if (m.get())
+                        out.set(in);
+                    else
+                        out.setZero();
+                },
+                slice.firstElement().createVariable());
     }
 
+    /**
+     * Computes the feature vector of an image.
+     *
+     * For masked images, features are computed directly over the mask region of each channel: the
+     * foreground pixels are extracted once into a buffer of the calling thread, and features that need
+     * the full slice read it through a view that hides the background. Channels without any foreground signal get NaN for every feature.
+     *
+     * The cheap features of all channels are computed first. If a gate is set and the cell doesn't pass it,
+     * the remaining features are skipped: the cell is either dropped or returned with only its cheap features.
+     *
+     * @param img image to compute the features of
+     * @param masked whether the image has masks
+     * @return feature vector of the image, or null if the gate dropped the cell
+     */
     public FeatureVector computeVector(Image<T> img, boolean masked) {
 
-        FeatureVector vec = new FeatureVector();
-        vec.add("file", img.getFilename());
-        vec.add("directory", img.getDirectory());
-        vec.add("id", img.getId());
+        FeatureVector vec = new FeatureVector(schema);
+        vec.setMeta(img.getId(), img.getFilename(), img.getDirectory());
 
-        ImgFactory<T> factory = img.getFactory();
+        ChannelWorkspace[] workspaces = this.workspaces.get();
+        ChannelContext[] contexts = this.contexts.get();
+        FeaturePlan[][] phases = masked ? maskedPhases : plainPhases;
 
         boolean[] compute = new boolean[img.getChannels().size()];
-        Img<T> libImg;
-        if (masked) {
-            IterableInterval<T> slice = Regions.sampleWithRandomAccessible(img.getMaskImg(), img.getImg());
-            libImg = factory.create(slice.dimensionsAsLongArray());
-            Cursor<T> cursor = slice.localizingCursor();
-            RandomAccess<T> rac = libImg.randomAccess();
-            while(cursor.hasNext()) {
-                cursor.fwd();
-                T type = cursor.get();
-                if(type.getRealDouble() > 0) {
-                    rac.setPosition(cursor);
-                    rac.get().set(type);
-                    compute[cursor.getIntPosition(2)] = true;
-                }
+        for (int i = 0; i<compute.length; i++) {
+            // channels that are only loaded for their mask
+            if (phases[i][0].getFeatures().isEmpty() && phases[i][1].getFeatures().isEmpty())
+                continue;
+
+            ChannelWorkspace workspace = workspaces[i];
+            ChannelContext context = contexts[i];
+            ForegroundBuffer buffer = workspace.getForeground();
+            IntensityStatistics stats = workspace.getStatistics();
+            IntervalView<T> slice = Views.hyperSlice(img.getImg(), Image.CHANNELDIM, i);
+            context.reset(workspace);
+
+            if (masked) {
+                IntervalView<NativeBoolType> maskSlice = Views.hyperSlice(img.getMaskImg(), Image.CHANNELDIM, maskPositions[i]);
+                BitMask bits = img.getMask(maskPositions[i]);
+
+                // the foreground pixels are extracted once, the statistics pass over them also tells
+                // whether there is any signal in the mask
+                buffer.fill(slice, bits);
+                stats.accumulate(buffer, computeMad);
+                compute[i] = stats.getSize() > 0 && stats.getMax() > 0;
+
+                context.put(mask, maskSlice);
+                context.put(bitMask, bits);
+                context.put(plane, maskedView(slice, maskSlice));
+            } else {
+                buffer.fill(slice);
+                stats.accumulate(buffer, computeMad);
+                compute[i] = true;
+
+                context.put(plane, slice);
             }
-        } else {
-            libImg = img.getImg();
-            Arrays.fill(compute, true);
+            context.put(pixels, buffer);
+            context.put(statistics, stats);
         }
 
-        for (int i = 0; i<img.getChannels().size(); i++) {
+        computePhase(phases, 0, contexts, compute, vec);
+        if (gate != null && !gate.test(vec)) {
+            rejected.incrementAndGet();
+            return gate.isDropping() ? null : vec;
+        }
+        computePhase(phases, 1, contexts, compute, vec);
+        if (colocalizations != null)
+            computeColocalization(img, masked, vec);
 
-            Long channel = img.getChannels().get(i);
+        return vec;
+    }
 
-            if (masked) {
-                computeOnMask(vec, img, compute[i], i, channel);
+    private void computeColocalization(Image<T> img, boolean masked, FeatureVector vec) {
+        Colocalization colocalization = colocalizations.get();
+        BitMask[] masks = null;
+        if (masked) {
+            int[] positions = colocalization.getPositions();
+            masks = new BitMask[positions.length];
+            for (int c = 0; c < positions.length; c++) {
+                masks[c] = img.getMask(maskPositions[positions[c]]);
             }
+        }
 
-            IntervalView<T> iv = opService.transform().hyperSliceView(libImg, 2, i);
-            compute(vec, iv, compute[i], channel);
+        colocalization.compute(img.getImg(), Image.CHANNELDIM, masks);
+        for (int p = 0; p < colocalizationColumns.length; p++) {
+            int[] columns = colocalizationColumns[p];
+            vec.set(columns[0], colocalization.getPearson(p));
+            vec.set(columns[1], colocalization.getMandersM1(p));
+            vec.set(columns[2], colocalization.getMandersM2(p));
+            vec.set(columns[3], colocalization.getOverlap(p));
+        }
+    }
+
+    private void computePhase(FeaturePlan[][] phases, int phase, ChannelContext[] contexts, boolean[] compute, FeatureVector vec) {
+        for (int i = 0; i < compute.length; i++) {
+            // channels without signal keep NaN for every feature
+            if (compute[i]) {
+                FeaturePlan plan = phases[i][phase];
+                plan.execute(contexts[i]);
+                for (Feature feature : plan.getFeatures()) {
+                    vec.set(feature.getColumn(i), feature.compute(contexts[i]));
+                }
+            }
         }
-        return vec;
     }
 }
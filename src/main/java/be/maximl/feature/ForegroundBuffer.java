@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import be.maximl.data.BitMask;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Values and coordinates of the foreground pixels of one channel slice, extracted once and read by all
+ * intensity, histogram and texture features of that channel.
+ *
+ * Coordinates are relative to the minimum of the slice. Values are stored as doubles, which is exact for all
+ * pixel types the loaders produce. The arrays only grow, so a buffer that is reused for every cell stops
+ * allocating once it has seen the largest slice.
+ */
+public class ForegroundBuffer {
+
+    private double[] values = new double[0];
+    private int[] x = new int[0];
+    private int[] y = new int[0];
+    private int size;
+    private int width;
+    private int height;
+    private boolean integer;
+
+    private void ensureCapacity(int capacity) {
+        if (values.length < capacity) {
+            values = new double[capacity];
+            x = new int[capacity];
+            y = new int[capacity];
+        }
+    }
+
+    /**
+     * Replaces the contents of the buffer with the pixels of the slice.
+     *
+     * @param slice pixels to extract, either all pixels of a slice or only its foreground
+     */
+    public <T extends RealType<T>> void fill(IterableInterval<T> slice) {
+        width = (int) slice.dimension(0);
+        height = (int) slice.dimension(1);
+        ensureCapacity(width * height);
+
+        long minX = slice.min(0);
+        long minY = slice.min(1);
+        size = 0;
+        integer = false;
+
+        Cursor<T> cursor = slice.localizingCursor();
+        while (cursor.hasNext()) {
+            T t = cursor.next();
+            values[size] = t.getRealDouble();
+            x[size] = (int) (cursor.getLongPosition(0) - minX);
+            y[size] = (int) (cursor.getLongPosition(1) - minY);
+            size++;
+        }
+
+        if (size > 0)
+            integer = slice.firstElement() instanceof IntegerType;
+    }
+
+    /**
+     * Replaces the contents of the buffer with the foreground pixels of the slice, in the same order as
+     * {@link #fill(IterableInterval)} over the sampled mask region.
+     *
+     * @param slice pixels of a channel
+     * @param mask foreground of the slice
+     */
+    public <T extends RealType<T>> void fill(RandomAccessibleInterval<T> slice, BitMask mask) {
+        width = (int) slice.dimension(0);
+        height = (int) slice.dimension(1);
+        ensureCapacity(mask.size());
+
+        long minX = slice.min(0);
+        long minY = slice.min(1);
+        size = 0;
+        integer = false;
+
+        RandomAccess<T> access = slice.randomAccess();
+        for (int i = mask.nextSet(0); i >= 0; i = mask.nextSet(i + 1)) {
+            int py = i / width;
+            int px = i - py * width;
+            access.setPosition(minX + px, 0);
+            access.setPosition(minY + py, 1);
+            values[size] = access.get().getRealDouble();
+            x[size] = px;
+            y[size] = py;
+            size++;
+        }
+
+        if (size > 0)
+            integer = access.get() instanceof IntegerType;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public int[] getX() {
+        return x;
+    }
+
+    public int[] getY() {
+        return y;
+    }
+
+    /**
+     * @return number of foreground pixels
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return width of the slice the pixels were extracted from
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the slice the pixels were extracted from
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return whether the pixels are of an integer type
+     */
+    public boolean isInteger() {
+        return integer;
+    }
+}
@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.Arrays;
+
+/**
+ * Haralick texture features of one normalized gray-level co-occurrence matrix.
+ *
+ * The marginal distributions shared by several features are computed once when the matrix is set,
+ * every feature is then a cheap reduction over the matrix. Definitions follow the ImageJ-ops Haralick
+ * namespace. Instances are reused for the matrices of consecutive slices.
+ */
+public class HaralickFeatures {
+
+    private static final double EPSILON = Double.MIN_NORMAL;
+
+    private final int nrGreyLevels;
+    private final double[] px;
+    private final double[] py;
+    private final double[] pxPlusY;
+    private final double[] pxMinusY;
+    private double[][] matrix;
+    private double meanX;
+    private double meanY;
+    private double stdX;
+    private double stdY;
+
+    public HaralickFeatures(int nrGreyLevels) {
+        this.nrGreyLevels = nrGreyLevels;
+        px = new double[nrGreyLevels];
+        py = new double[nrGreyLevels];
+        pxPlusY = new double[2 * nrGreyLevels + 1];
+        pxMinusY = new double[nrGreyLevels];
+    }
+
+    /**
+     * @param matrix normalized co-occurrence matrix with nrGreyLevels rows and columns
+     */
+    public void update(double[][] matrix) {
+        this.matrix = matrix;
+
+        Arrays.fill(px, 0);
+        Arrays.fill(py, 0);
+        Arrays.fill(pxPlusY, 0);
+        Arrays.fill(pxMinusY, 0);
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                double p = matrix[i][j];
+                px[i] += p;
+                py[j] += p;
+                pxPlusY[i + j + 2] += p;
+                pxMinusY[Math.abs(i - j)] += p;
+            }
+        }
+
+        double mx = 0, my = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            mx += i * px[i];
+            my += i * py[i];
+        }
+        meanX = mx;
+        meanY = my;
+
+        double vx = 0, vy = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            vx += (i - meanX) * (i - meanX) * px[i];
+            vy += (i - meanY) * (i - meanY) * py[i];
+        }
+        stdX = Math.sqrt(vx);
+        stdY = Math.sqrt(vy);
+    }
+
+    private static double entropy(double[] p) {
+        double res = 0;
+        for (double v : p) {
+            res += v * Math.log(v + EPSILON);
+        }
+        return -res;
+    }
+
+    public double[][] getMatrix() {
+        return matrix;
+    }
+
+    public double getASM() {
+        double res = 0;
+        for (double[] row : matrix) {
+            for (double p : row) {
+                res += p * p;
+            }
+        }
+        return res;
+    }
+
+    public double getContrast() {
+        double res = 0;
+        for (int k = 0; k < nrGreyLevels; k++) {
+            res += k * k * pxMinusY[k];
+        }
+        return res;
+    }
+
+    public double getCorrelation() {
+        double res = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                res += ((i - meanX) * (j - meanY)) * (matrix[i][j] / (stdX * stdY));
+            }
+        }
+        return Double.isNaN(res) ? 0 : res;
+    }
+
+    public double getVariance() {
+        double res = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            res += (i - meanX) * (i - meanX) * px[i];
+        }
+        return res;
+    }
+
+    public double getIFDM() {
+        double res = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                res += matrix[i][j] / (1 + (i - j) * (i - j));
+            }
+        }
+        return res;
+    }
+
+    public double getTextureHomogeneity() {
+        double res = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                res += matrix[i][j] / (1 + Math.abs(i - j));
+            }
+        }
+        return res;
+    }
+
+    public double getSumAverage() {
+        double res = 0;
+        for (int k = 2; k <= 2 * nrGreyLevels; k++) {
+            res += k * pxPlusY[k];
+        }
+        return res;
+    }
+
+    public double getSumVariance() {
+        double sumAverage = getSumAverage();
+        double res = 0;
+        for (int k = 2; k <= 2 * nrGreyLevels; k++) {
+            res += (k - sumAverage) * (k - sumAverage) * pxPlusY[k];
+        }
+        return res;
+    }
+
+    public double getSumEntropy() {
+        return entropy(pxPlusY);
+    }
+
+    public double getEntropy() {
+        double res = 0;
+        for (double[] row : matrix) {
+            for (double p : row) {
+                res += p * Math.log(p + EPSILON);
+            }
+        }
+        return -res;
+    }
+
+    public double getDifferenceVariance() {
+        double mean = 0;
+        for (int k = 0; k < nrGreyLevels; k++) {
+            mean += k * pxMinusY[k];
+        }
+        double res = 0;
+        for (int k = 0; k < nrGreyLevels; k++) {
+            res += (k - mean) * (k - mean) * pxMinusY[k];
+        }
+        return res;
+    }
+
+    public double getDifferenceEntropy() {
+        return entropy(pxMinusY);
+    }
+
+    public double getICM1() {
+        double hxy = getEntropy();
+        double hxy1 = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                hxy1 += matrix[i][j] * Math.log(px[i] * py[j] + EPSILON);
+            }
+        }
+        hxy1 = -hxy1;
+        return (hxy - hxy1) / Math.max(entropy(px), entropy(py));
+    }
+
+    public double getICM2() {
+        double hxy = getEntropy();
+        double hxy2 = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                double p = px[i] * py[j];
+                hxy2 += p * Math.log(p + EPSILON);
+            }
+        }
+        hxy2 = -hxy2;
+        return Math.sqrt(1 - Math.exp(-2 * (hxy2 - hxy)));
+    }
+
+    public double getClusterShade() {
+        double res = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                double d = i + j - meanX - meanY;
+                res += d * d * d * matrix[i][j];
+            }
+        }
+        return res;
+    }
+
+    public double getClusterPromenence() {
+        double res = 0;
+        for (int i = 0; i < nrGreyLevels; i++) {
+            for (int j = 0; j < nrGreyLevels; j++) {
+                double d = i + j - meanX - meanY;
+                res += d * d * d * d * matrix[i][j];
+            }
+        }
+        return res;
+    }
+
+    public double getMaxProbability() {
+        double res = 0;
+        for (double[] row : matrix) {
+            for (double p : row) {
+                if (p > res)
+                    res = p;
+            }
+        }
+        return res;
+    }
+}
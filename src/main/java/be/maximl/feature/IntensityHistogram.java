@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.Arrays;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Counting histogram over the integer values of a channel slice.
+ *
+ * The histogram covers the range between the minimum and maximum value only, which for the 12 to 16-bit
+ * data of imaging flow cytometers is small enough to build in one pass. Every quantile is then an exact
+ * order statistic found by a walk over the cumulative counts, no values are copied or sorted.
+ */
+public class IntensityHistogram implements Quantiles {
+
+    /**
+     * Largest value range a histogram is built for, wider ranges should use a sorting approach.
+     */
+    final public static long MAX_BINS = 1 << 20;
+
+    private int[] counts = new int[0];
+    private long offset;
+    private int bins;
+    private long n;
+
+    /**
+     * @param min minimum value of the slice
+     * @param max maximum value of the slice
+     * @return whether the values between min and max fit in a histogram
+     */
+    public static boolean supports(double min, double max) {
+        return max - min + 1 <= MAX_BINS;
+    }
+
+    /**
+     * Counts all values, the counts array is reused between builds.
+     *
+     * @param buffer integer values of the slice
+     * @param min minimum value of the slice
+     * @param max maximum value of the slice
+     */
+    public void build(ForegroundBuffer buffer, double min, double max) {
+        n = 0;
+        if (max < min) {
+            bins = 0;
+            return;
+        }
+
+        offset = (long) min;
+        bins = (int) ((long) max - offset + 1);
+        if (counts.length < bins)
+            counts = new int[bins];
+        else
+            Arrays.fill(counts, 0, bins, 0);
+
+        double[] values = buffer.getValues();
+        int size = buffer.size();
+        for (int i = 0; i < size; i++) {
+            counts[(int) ((long) values[i] - offset)]++;
+        }
+        n = size;
+    }
+
+    private double valueAt(long k) {
+        if (n == 0)
+            return NaN;
+
+        long cumulative = 0;
+        for (int i = 0; i < bins; i++) {
+            cumulative += counts[i];
+            if (cumulative > k)
+                return offset + i;
+        }
+        return offset + bins - 1;
+    }
+
+    @Override
+    public double median() {
+        return valueAt(n / 2);
+    }
+
+    @Override
+    public double percentile(double percent) {
+        return valueAt(Math.min((long) (n * (percent / 100.0)), n - 1));
+    }
+
+    public long getCount() {
+        return n;
+    }
+}
@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+/**
+ * Accumulates the moment-based intensity statistics of a channel slice in a single pass.
+ *
+ * The central moments are updated incrementally (Welford/Terriberry), so the mean, variance,
+ * skewness and kurtosis do not require a separate pass to compute the mean first. The definitions
+ * follow the ImageJ-ops implementations the features were originally computed with: the standard
+ * deviation uses the sample variance (n - 1), the third and fourth moments about the mean are
+ * divided by n.
+ *
+ * The mean absolute deviation is the only statistic that depends on the mean of all values, it
+ * requires a second pass which is only done when requested.
+ */
+public class IntensityStatistics {
+
+    private long n;
+    private double sum;
+    private double sumOfLogs;
+    private double sumOfInverses;
+    private double min;
+    private double max;
+    private double mean;
+    private double m2;
+    private double m3;
+    private double m4;
+    private double absDevSum;
+
+    public IntensityStatistics() {
+        reset();
+    }
+
+    public void reset() {
+        n = 0;
+        sum = 0;
+        sumOfLogs = 0;
+        sumOfInverses = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        mean = 0;
+        m2 = 0;
+        m3 = 0;
+        m4 = 0;
+        absDevSum = 0;
+    }
+
+    public void add(double v) {
+        long n1 = n;
+        n++;
+
+        double delta = v - mean;
+        double deltaN = delta / n;
+        double deltaN2 = deltaN * deltaN;
+        double term1 = delta * deltaN * n1;
+        mean += deltaN;
+        m4 += term1 * deltaN2 * (n * n - 3 * n + 3) + 6 * deltaN2 * m2 - 4 * deltaN * m3;
+        m3 += term1 * deltaN * (n - 2) - 3 * deltaN * m2;
+        m2 += term1;
+
+        sum += v;
+        sumOfLogs += Math.log(v);
+        sumOfInverses += 1 / v;
+        if (v < min)
+            min = v;
+        if (v > max)
+            max = v;
+    }
+
+    /**
+     * Computes the statistics of all values in one pass, and a second one for the mean absolute deviation
+     * if it is needed.
+     *
+     * @param buffer values to summarize
+     * @param absoluteDeviation whether to compute the mean absolute deviation
+     */
+    public void accumulate(ForegroundBuffer buffer, boolean absoluteDeviation) {
+        reset();
+        double[] values = buffer.getValues();
+        int size = buffer.size();
+        for (int i = 0; i < size; i++) {
+            add(values[i]);
+        }
+
+        if (absoluteDeviation) {
+            double mean = getMean();
+            for (int i = 0; i < size; i++) {
+                absDevSum += Math.abs(values[i] - mean);
+            }
+        }
+    }
+
+    public long getSize() {
+        return n;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return sum / n;
+    }
+
+    public double getGeometricMean() {
+        return Math.exp(sumOfLogs / n);
+    }
+
+    public double getHarmonicMean() {
+        return n / sumOfInverses;
+    }
+
+    public double getVariance() {
+        return m2 / (n - 1);
+    }
+
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
+    public double getMoment3AboutMean() {
+        return m3 / n;
+    }
+
+    public double getMoment4AboutMean() {
+        return m4 / n;
+    }
+
+    public double getSkewness() {
+        double std = getStdDev();
+        if (std == 0)
+            return Double.NaN;
+        return getMoment3AboutMean() / (std * std * std);
+    }
+
+    public double getKurtosis() {
+        double std = getStdDev();
+        if (std == 0)
+            return Double.NaN;
+        return getMoment4AboutMean() / (std * std * std * std);
+    }
+
+    public double getMeanAbsoluteDeviation() {
+        return absDevSum / n;
+    }
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A value computed once per channel and shared by all features that need it, e.g. the contour of the
+ * mask, its convex hull or the co-occurrence matrices.
+ *
+ * An intermediate is either an input, supplied by the caller for every channel, or derived from the
+ * intermediates it depends on.
+ *
+ * @param <V> type of the value
+ */
+public class Intermediate<V> {
+
+    private final String name;
+    private final Function<ChannelContext, V> func;
+    private final List<Intermediate<?>> dependencies;
+
+    private Intermediate(String name, Function<ChannelContext, V> func, List<Intermediate<?>> dependencies) {
+        this.name = name;
+        this.func = func;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * @param name name of the input, as shown in the plan
+     * @param <V> type of the value
+     * @return an intermediate that is supplied by the caller
+     */
+    public static <V> Intermediate<V> input(String name) {
+        return new Intermediate<>(name, null, Collections.emptyList());
+    }
+
+    /**
+     * @param name name of the intermediate, as shown in the plan
+     * @param func computes the value from the dependencies in the context
+     * @param dependencies intermediates read by func
+     * @param <V> type of the value
+     * @return an intermediate that is computed from its dependencies
+     */
+    public static <V> Intermediate<V> derived(String name, Function<ChannelContext, V> func, Intermediate<?>... dependencies) {
+        return new Intermediate<>(name, func, Collections.unmodifiableList(Arrays.asList(dependencies)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isInput() {
+        return func == null;
+    }
+
+    public List<Intermediate<?>> getDependencies() {
+        return dependencies;
+    }
+
+    V compute(ChannelContext context) {
+        return func.apply(context);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Root mean square of the morphological gradient (dilation minus erosion) of a plane, for square
+ * structuring elements of several diameters.
+ *
+ * Dilation and erosion by a square are separable into a row and a column pass, and each pass uses the
+ * van Herk/Gil-Werman algorithm, which takes a constant number of comparisons per pixel whatever the
+ * diameter. Pixels outside the plane are ignored. The window of diameter d covers offsets -(d - 1) / 2 up to
+ * d / 2, as with MorphoLibJ's SquareStrel. The plane is read once per channel and all buffers are reused, so
+ * computing a cell does not allocate once the buffers have grown to the largest plane.
+ */
+public class MultiScaleGradient {
+
+    private double[] plane = new double[0];
+    private double[] rowMax = new double[0];
+    private double[] rowMin = new double[0];
+    private double[] line = new double[0];
+    private double[] lineMax = new double[0];
+    private double[] lineMin = new double[0];
+    private double[] prefix = new double[0];
+    private double[] suffix = new double[0];
+    private int width;
+    private int height;
+
+    /**
+     * Computes the gradient RMS of a plane for each diameter.
+     *
+     * @param input two-dimensional plane
+     * @param diameters diameters of the square structuring elements
+     * @return gradient RMS per diameter
+     * @throws IllegalArgumentException if a diameter is less than one
+     */
+    public <T extends RealType<T>> double[] compute(RandomAccessibleInterval<T> input, int[] diameters) {
+        for (int diameter : diameters) {
+            if (diameter < 1)
+                throw new IllegalArgumentException("Diameter must be at least 1, got " + diameter + ".");
+        }
+        load(input);
+        double[] res = new double[diameters.length];
+        for (int i = 0; i < diameters.length; i++) {
+            res[i] = rms(diameters[i]);
+        }
+        return res;
+    }
+
+    private <T extends RealType<T>> void load(RandomAccessibleInterval<T> input) {
+        width = (int) input.dimension(0);
+        height = (int) input.dimension(1);
+        int size = width * height;
+        if (plane.length < size) {
+            plane = new double[size];
+            rowMax = new double[size];
+            rowMin = new double[size];
+        }
+
+        Cursor<T> cursor = Views.flatIterable(input).cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            plane[i++] = cursor.next().getRealDouble();
+        }
+    }
+
+    private double rms(int diameter) {
+        if (width * height == 0)
+            return Double.NaN;
+
+        int capacity = Math.max(width, height) + diameter;
+        if (prefix.length < capacity) {
+            line = new double[capacity];
+            lineMax = new double[capacity];
+            lineMin = new double[capacity];
+            prefix = new double[capacity];
+            suffix = new double[capacity];
+        }
+
+        // rows: dilate and erode every row of the plane
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            System.arraycopy(plane, offset, line, 0, width);
+            slide(line, width, diameter, true, lineMax);
+            slide(line, width, diameter, false, lineMin);
+            System.arraycopy(lineMax, 0, rowMax, offset, width);
+            System.arraycopy(lineMin, 0, rowMin, offset, width);
+        }
+
+        // columns: dilate the row maxima, erode the row minima and accumulate the squared difference
+        double sum = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                line[y] = rowMax[i];
+            }
+            slide(line, height, diameter, true, lineMax);
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                line[y] = rowMin[i];
+            }
+            slide(line, height, diameter, false, lineMin);
+
+            for (int y = 0; y < height; y++) {
+                double gradient = lineMax[y] - lineMin[y];
+                sum += gradient * gradient;
+            }
+        }
+
+        return Math.sqrt(sum / (width * height));
+    }
+
+    /**
+     * Sliding maximum or minimum over a line. The line is padded so window i spans padded positions
+     * i to i + diameter - 1; the prefix and suffix extrema within aligned blocks of the diameter then give
+     * each window's extremum as the extremum of one suffix and one prefix value.
+     *
+     * @param src values of the line
+     * @param n length of the line
+     * @param diameter window size
+     * @param max whether to compute the maximum, or else the minimum
+     * @param out receives the extremum of each window
+     */
+    private void slide(double[] src, int n, int diameter, boolean max, double[] out) {
+        int offset = (diameter - 1) / 2;
+        int padded = n + diameter - 1;
+        double identity = max ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+
+        for (int p = 0; p < padded; p++) {
+            int s = p - offset;
+            double v = s >= 0 && s < n ? src[s] : identity;
+            if (p % diameter == 0)
+                prefix[p] = v;
+            else
+                prefix[p] = max ? Math.max(prefix[p - 1], v) : Math.min(prefix[p - 1], v);
+        }
+        for (int p = padded - 1; p >= 0; p--) {
+            int s = p - offset;
+            double v = s >= 0 && s < n ? src[s] : identity;
+            if (p == padded - 1 || p % diameter == diameter - 1)
+                suffix[p] = v;
+            else
+                suffix[p] = max ? Math.max(suffix[p + 1], v) : Math.min(suffix[p + 1], v);
+        }
+        for (int i = 0; i < n; i++) {
+            double a = suffix[i];
+            double b = prefix[i + diameter - 1];
+            out[i] = max ? Math.max(a, b) : Math.min(a, b);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+/**
+ * Order statistics of the pixel values of a channel slice.
+ *
+ * Percentiles are defined as in ImageJ-ops: the k-th smallest value, with k = floor(n * percent / 100),
+ * and the median is the value at k = floor(n / 2).
+ */
+public interface Quantiles {
+
+    double median();
+
+    double percentile(double percent);
+
+    default double interQuartileRange() {
+        return percentile(75) - percentile(25);
+    }
+}
@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.roi.geom.real.Polygon2D;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Geometry of a contour polygon, from which all shape features of a channel are read.
+ *
+ * One pass over the vertices gives the area, the perimeter, the bounding box and the moments up to second
+ * order by Green's theorem; the fitted ellipse follows from the central moments. The convex hull is built with
+ * Andrew's monotone chain, and one sweep over its edges gives the hull perimeter, the minimum Feret diameter
+ * and the minimum-area enclosing rectangle. The definitions follow the geometry ops, so the features keep
+ * their values. Reusing an instance does not allocate once it has seen the largest contour.
+ */
+public class ShapeDescriptor {
+
+    private double[] xs = new double[0];
+    private double[] ys = new double[0];
+    private int[] order = new int[0];
+    private double[] hullXs = new double[0];
+    private double[] hullYs = new double[0];
+    private int hullSize;
+
+    private double area;
+    private double perimeter;
+    private double majorAxis;
+    private double minorAxis;
+    private double boundingBoxArea;
+    private double hullArea;
+    private double hullPerimeter;
+    private double feretMax;
+    private double feretMin;
+    private double rectangleShort;
+    private double rectangleLong;
+
+    /**
+     * Replaces the descriptor with that of a polygon.
+     *
+     * @param polygon contour of a cell
+     * @return this
+     */
+    public ShapeDescriptor compute(Polygon2D polygon) {
+        int n = polygon.numVertices();
+        if (xs.length < n) {
+            xs = new double[n];
+            ys = new double[n];
+            order = new int[n];
+            hullXs = new double[2 * n];
+            hullYs = new double[2 * n];
+        }
+        for (int i = 0; i < n; i++) {
+            RealLocalizable vertex = polygon.vertex(i);
+            xs[i] = vertex.getDoublePosition(0);
+            ys[i] = vertex.getDoublePosition(1);
+        }
+
+        computeContour(n);
+        computeHull(n);
+        computeCalipers();
+        return this;
+    }
+
+    private void computeContour(int n) {
+        double m00 = 0, m10 = 0, m01 = 0, m20 = 0, m02 = 0, m11 = 0;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        perimeter = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            double xi = xs[i], yi = ys[i], xj = xs[j], yj = ys[j];
+            double a = xi * yj - xj * yi;
+            m00 += a;
+            m10 += (xi + xj) * a;
+            m01 += (yi + yj) * a;
+            m20 += (xi * xi + xi * xj + xj * xj) * a;
+            m02 += (yi * yi + yi * yj + yj * yj) * a;
+            m11 += (xi * yj + 2 * xi * yi + 2 * xj * yj + xj * yi) * a;
+            perimeter += Math.hypot(xj - xi, yj - yi);
+            minX = Math.min(minX, xi);
+            maxX = Math.max(maxX, xi);
+            minY = Math.min(minY, yi);
+            maxY = Math.max(maxY, yi);
+        }
+        m00 /= 2;
+        m10 /= 6;
+        m01 /= 6;
+        m20 /= 12;
+        m02 /= 12;
+        m11 /= 24;
+
+        area = Math.abs(m00);
+        boundingBoxArea = n == 0 ? 0 : (maxX - minX) * (maxY - minY);
+        if (m00 == 0) {
+            majorAxis = NaN;
+            minorAxis = NaN;
+            return;
+        }
+
+        // the signs of the orientation cancel in the normalized central moments
+        double cx = m10 / m00;
+        double cy = m01 / m00;
+        double u20 = m20 / m00 - cx * cx;
+        double u02 = m02 / m00 - cy * cy;
+        double u11 = m11 / m00 - cx * cy;
+        double root = Math.sqrt(4 * u11 * u11 + (u20 - u02) * (u20 - u02));
+        majorAxis = Math.sqrt(8 * (u20 + u02 + root));
+        minorAxis = Math.sqrt(Math.max(0, 8 * (u20 + u02 - root)));
+    }
+
+    private void computeHull(int n) {
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        sortByPosition(n);
+
+        // lower hull from left to right, then upper hull from right to left, counter-clockwise
+        hullSize = 0;
+        for (int k = 0; k < n; k++) {
+            addToHull(order[k], 2);
+        }
+        int lower = hullSize + 1;
+        for (int k = n - 2; k >= 0; k--) {
+            addToHull(order[k], lower);
+        }
+        // the chain ends where it started
+        if (hullSize > 1)
+            hullSize--;
+
+        hullArea = 0;
+        hullPerimeter = 0;
+        for (int i = 0; i < hullSize; i++) {
+            int j = (i + 1) % hullSize;
+            hullArea += hullXs[i] * hullYs[j] - hullXs[j] * hullYs[i];
+            hullPerimeter += Math.hypot(hullXs[j] - hullXs[i], hullYs[j] - hullYs[i]);
+        }
+        hullArea = Math.abs(hullArea) / 2;
+    }
+
+    private void addToHull(int vertex, int minSize) {
+        double x = xs[vertex], y = ys[vertex];
+        while (hullSize >= minSize && cross(hullXs[hullSize - 2], hullYs[hullSize - 2], hullXs[hullSize - 1], hullYs[hullSize - 1], x, y) <= 0) {
+            hullSize--;
+        }
+        hullXs[hullSize] = x;
+        hullYs[hullSize] = y;
+        hullSize++;
+    }
+
+    private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+        return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+    }
+
+    /**
+     * Insertion sort of the vertex indices by x, then y. Cell contours have at most a few hundred vertices,
+     * which keeps this cheaper than boxing the indices for a library sort.
+     */
+    private void sortByPosition(int n) {
+        for (int i = 1; i < n; i++) {
+            int v = order[i];
+            int j = i - 1;
+            while (j >= 0 && (xs[order[j]] > xs[v] || (xs[order[j]] == xs[v] && ys[order[j]] > ys[v]))) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = v;
+        }
+    }
+
+    /**
+     * For every hull edge, projects the hull on the edge and its normal: the narrowest projection on a
+     * normal is the minimum Feret diameter, the smallest product of both the minimum-area rectangle. The
+     * maximum Feret diameter is the largest distance between two hull vertices.
+     */
+    private void computeCalipers() {
+        feretMax = 0;
+        for (int i = 0; i < hullSize; i++) {
+            for (int j = i + 1; j < hullSize; j++) {
+                feretMax = Math.max(feretMax, Math.hypot(hullXs[j] - hullXs[i], hullYs[j] - hullYs[i]));
+            }
+        }
+
+        if (hullSize < 3) {
+            // a point or a segment
+            feretMin = 0;
+            rectangleShort = 0;
+            rectangleLong = feretMax;
+            return;
+        }
+
+        feretMin = Double.POSITIVE_INFINITY;
+        double minArea = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < hullSize; i++) {
+            int j = (i + 1) % hullSize;
+            double length = Math.hypot(hullXs[j] - hullXs[i], hullYs[j] - hullYs[i]);
+            if (length == 0)
+                continue;
+            double ux = (hullXs[j] - hullXs[i]) / length;
+            double uy = (hullYs[j] - hullYs[i]) / length;
+
+            double minU = Double.POSITIVE_INFINITY, maxU = Double.NEGATIVE_INFINITY, maxV = 0;
+            for (int k = 0; k < hullSize; k++) {
+                double dx = hullXs[k] - hullXs[i];
+                double dy = hullYs[k] - hullYs[i];
+                double u = dx * ux + dy * uy;
+                // the hull lies left of its counter-clockwise edges
+                double v = dy * ux - dx * uy;
+                minU = Math.min(minU, u);
+                maxU = Math.max(maxU, u);
+                maxV = Math.max(maxV, v);
+            }
+
+            feretMin = Math.min(feretMin, maxV);
+            double width = maxU - minU;
+            if (width * maxV < minArea) {
+                minArea = width * maxV;
+                rectangleShort = Math.min(width, maxV);
+                rectangleLong = Math.max(width, maxV);
+            }
+        }
+    }
+
+    private static double ratio(double numerator, double denominator) {
+        return denominator == 0 ? NaN : numerator / denominator;
+    }
+
+    public double getArea() {
+        return area;
+    }
+
+    public double getPerimeter() {
+        return perimeter;
+    }
+
+    public double getMajorAxis() {
+        return majorAxis;
+    }
+
+    public double getMinorAxis() {
+        return minorAxis;
+    }
+
+    public double getHullArea() {
+        return hullArea;
+    }
+
+    public double getFeretDiameterMax() {
+        return feretMax;
+    }
+
+    public double getFeretDiameterMin() {
+        return feretMin;
+    }
+
+    /**
+     * @return sqrt(1 - (minor / major)^2) of the fitted ellipse
+     */
+    public double getEccentricity() {
+        double axes = ratio(minorAxis, majorAxis);
+        return Math.sqrt(1 - axes * axes);
+    }
+
+    /**
+     * @return 4 pi area / perimeter^2
+     */
+    public double getCircularity() {
+        return ratio(4 * Math.PI * area, perimeter * perimeter);
+    }
+
+    /**
+     * @return 4 area / (pi major^2)
+     */
+    public double getRoundness() {
+        return ratio(4 * area, Math.PI * majorAxis * majorAxis);
+    }
+
+    /**
+     * @return perimeter of the convex hull over that of the contour
+     */
+    public double getConvexity() {
+        return ratio(hullPerimeter, perimeter);
+    }
+
+    /**
+     * @return area over that of the convex hull
+     */
+    public double getSolidity() {
+        return ratio(area, hullArea);
+    }
+
+    /**
+     * @return area over that of the axis-aligned bounding box
+     */
+    public double getExtent() {
+        return ratio(area, boundingBoxArea);
+    }
+
+    /**
+     * @return one minus the ratio of the short to the long side of the minimum-area enclosing rectangle
+     */
+    public double getMainElongation() {
+        return 1 - ratio(rectangleShort, rectangleLong);
+    }
+}
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Statistics of the Sobel gradient magnitude of a plane, computed in one streaming pass.
+ *
+ * The 3x3 Sobel kernels are applied over three rolling row buffers, with the plane extended by mirroring
+ * without repeating the border pixel, as the out-of-bounds strategy of the Sobel op. The magnitude
+ * sqrt(gx^2 + gy^2) is only kept in a reusable buffer for the percentiles, which sort it on first request.
+ * Magnitudes are computed in double precision. Reusing an instance does not allocate once it has seen the
+ * largest plane.
+ */
+public class SobelStatistics implements Quantiles {
+
+    private double[] above = new double[0];
+    private double[] row = new double[0];
+    private double[] below = new double[0];
+    private double[] magnitudes = new double[0];
+    private int n;
+    private boolean sorted;
+    private double sum;
+    private double sumOfSquares;
+    private double max;
+
+    /**
+     * Replaces the statistics with those of the Sobel gradient magnitude of the plane.
+     *
+     * @param plane two-dimensional plane
+     */
+    public <T extends RealType<T>> void accumulate(RandomAccessibleInterval<T> plane) {
+        int width = (int) plane.dimension(0);
+        int height = (int) plane.dimension(1);
+        n = width * height;
+        sorted = false;
+        sum = 0;
+        sumOfSquares = 0;
+        max = NaN;
+        if (n == 0)
+            return;
+
+        if (row.length < width) {
+            above = new double[width];
+            row = new double[width];
+            below = new double[width];
+        }
+        if (magnitudes.length < n)
+            magnitudes = new double[n];
+
+        Cursor<T> cursor = Views.flatIterable(plane).cursor();
+        read(cursor, row, width);
+        if (height > 1) {
+            read(cursor, below, width);
+            System.arraycopy(below, 0, above, 0, width);
+        } else {
+            System.arraycopy(row, 0, below, 0, width);
+            System.arraycopy(row, 0, above, 0, width);
+        }
+
+        max = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int l = mirror(x - 1, width);
+                int r = mirror(x + 1, width);
+                double gx = (above[r] - above[l]) + 2 * (row[r] - row[l]) + (below[r] - below[l]);
+                double gy = (below[l] - above[l]) + 2 * (below[x] - above[x]) + (below[r] - above[r]);
+                double squared = gx * gx + gy * gy;
+                double magnitude = Math.sqrt(squared);
+
+                magnitudes[offset + x] = magnitude;
+                sum += magnitude;
+                sumOfSquares += squared;
+                if (magnitude > max)
+                    max = magnitude;
+            }
+
+            // roll the buffers, the row below the last row mirrors to the row above it
+            if (y + 1 < height) {
+                double[] tmp = above;
+                above = row;
+                row = below;
+                below = tmp;
+                if (y + 2 < height)
+                    read(cursor, below, width);
+                else
+                    System.arraycopy(above, 0, below, 0, width);
+            }
+        }
+    }
+
+    private static <T extends RealType<T>> void read(Cursor<T> cursor, double[] dst, int width) {
+        for (int x = 0; x < width; x++) {
+            dst[x] = cursor.next().getRealDouble();
+        }
+    }
+
+    /**
+     * Mirrors an index into [0, size) without repeating the border, for indices at most one outside.
+     */
+    private static int mirror(int i, int size) {
+        if (size == 1)
+            return 0;
+        if (i < 0)
+            return 1;
+        if (i >= size)
+            return size - 2;
+        return i;
+    }
+
+    public double getMean() {
+        return n == 0 ? NaN : sum / n;
+    }
+
+    public double getRMS() {
+        return n == 0 ? NaN : Math.sqrt(sumOfSquares / n);
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    private void sort() {
+        if (!sorted) {
+            Arrays.sort(magnitudes, 0, n);
+            sorted = true;
+        }
+    }
+
+    @Override
+    public double median() {
+        if (n == 0)
+            return NaN;
+        sort();
+        return magnitudes[n / 2];
+    }
+
+    @Override
+    public double percentile(double percent) {
+        if (n == 0)
+            return NaN;
+        sort();
+        return magnitudes[Math.min((int) (n * (percent / 100.0)), n - 1)];
+    }
+}
@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.Arrays;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Quantiles of non-integer pixel values, found by sorting a copy of the foreground values.
+ *
+ * The copy is kept between calls, so reusing an instance does not allocate once it has seen the largest
+ * slice.
+ */
+public class SortedQuantiles implements Quantiles {
+
+    private double[] sorted = new double[0];
+    private int n;
+
+    public void build(ForegroundBuffer buffer) {
+        n = buffer.size();
+        if (sorted.length < n)
+            sorted = new double[n];
+        System.arraycopy(buffer.getValues(), 0, sorted, 0, n);
+        Arrays.sort(sorted, 0, n);
+    }
+
+    @Override
+    public double median() {
+        return n == 0 ? NaN : sorted[n / 2];
+    }
+
+    @Override
+    public double percentile(double percent) {
+        return n == 0 ? NaN : sorted[Math.min((int) (n * (percent / 100.0)), n - 1)];
+    }
+}
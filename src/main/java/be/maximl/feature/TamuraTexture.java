@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Tamura's coarseness, contrast and directionality of a plane.
+ *
+ * The plane is read once into a buffer together with its integral image. Contrast comes from the central
+ * moments of the buffer, while the local means that coarseness compares at every scale and the Prewitt
+ * differences that directionality bins are all box sums read from the integral image in constant time. The
+ * buffers are reused, so computing a cell does not allocate once they have grown to the largest plane.
+ */
+public class TamuraTexture {
+
+    // largest window for coarseness is 2^MAX_SCALE pixels wide
+    final private static int MAX_SCALE = 5;
+    final private static int DIRECTION_BINS = 16;
+
+    private double[] plane = new double[0];
+    private double[] integral = new double[0];
+    private final double[] directions = new double[DIRECTION_BINS];
+    private int width;
+    private int height;
+
+    private double contrast;
+    private double coarseness;
+    private double directionality;
+
+    /**
+     * Computes all Tamura features of a plane.
+     *
+     * @param input two-dimensional plane
+     * @return this, holding the features of the plane
+     */
+    public <T extends RealType<T>> TamuraTexture compute(RandomAccessibleInterval<T> input) {
+        load(input);
+        contrast = computeContrast();
+        coarseness = computeCoarseness();
+        directionality = computeDirectionality();
+        return this;
+    }
+
+    public double getContrast() {
+        return contrast;
+    }
+
+    public double getCoarseness() {
+        return coarseness;
+    }
+
+    public double getDirectionality() {
+        return directionality;
+    }
+
+    private <T extends RealType<T>> void load(RandomAccessibleInterval<T> input) {
+        width = (int) input.dimension(0);
+        height = (int) input.dimension(1);
+        if (plane.length < width * height)
+            plane = new double[width * height];
+        if (integral.length < (width + 1) * (height + 1))
+            integral = new double[(width + 1) * (height + 1)];
+
+        Cursor<T> cursor = Views.flatIterable(input).cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            plane[i++] = cursor.next().getRealDouble();
+        }
+
+        // integral[y * (width + 1) + x] holds the sum of the pixels left of x and above y
+        int stride = width + 1;
+        for (int x = 0; x <= width; x++) {
+            integral[x] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            double row = 0;
+            integral[(y + 1) * stride] = 0;
+            for (int x = 0; x < width; x++) {
+                row += plane[y * width + x];
+                integral[(y + 1) * stride + x + 1] = integral[y * stride + x + 1] + row;
+            }
+        }
+    }
+
+    /**
+     * Sum of the pixels in [x0, x1) x [y0, y1), after clipping the box to the plane.
+     */
+    private double boxSum(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width);
+        y1 = Math.min(y1, height);
+        if (x0 >= x1 || y0 >= y1)
+            return 0;
+        int stride = width + 1;
+        return integral[y1 * stride + x1] - integral[y0 * stride + x1] - integral[y1 * stride + x0] + integral[y0 * stride + x0];
+    }
+
+    /**
+     * Mean of the pixels in [x0, x1) x [y0, y1) that lie inside the plane.
+     */
+    private double boxMean(int x0, int y0, int x1, int y1) {
+        int area = (Math.min(x1, width) - Math.max(x0, 0)) * (Math.min(y1, height) - Math.max(y0, 0));
+        return boxSum(x0, y0, x1, y1) / area;
+    }
+
+    /**
+     * Standard deviation divided by the fourth root of the kurtosis. As in the Tamura contrast op, the
+     * variance is the sample variance (n - 1) and the fourth moment about the mean divides by n. A plane
+     * without variation has no contrast.
+     */
+    private double computeContrast() {
+        int size = width * height;
+        if (size == 0)
+            return Double.NaN;
+
+        double mean = integral[height * (width + 1) + width] / size;
+        double m2 = 0;
+        double m4 = 0;
+        for (int i = 0; i < size; i++) {
+            double d = plane[i] - mean;
+            double d2 = d * d;
+            m2 += d2;
+            m4 += d2 * d2;
+        }
+        if (size < 2 || m2 == 0)
+            return 0;
+        m2 /= size - 1;
+        m4 /= size;
+
+        double kurtosis = m4 / (m2 * m2);
+        return Math.sqrt(m2) / Math.pow(kurtosis, 0.25);
+    }
+
+    /**
+     * Mean over all pixels of the window size 2^k that maximises the difference between the means of the
+     * windows on opposite sides of the pixel, horizontally or vertically. Windows are clipped to the plane
+     * and a pixel whose opposite windows fall outside of the plane has no difference in that direction.
+     */
+    private double computeCoarseness() {
+        int scales = 0;
+        while (scales < MAX_SCALE && 2 << scales <= Math.min(width, height)) {
+            scales++;
+        }
+        if (scales == 0)
+            return Double.NaN;
+
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double best = -1;
+                int bestSize = 0;
+                for (int k = 1; k <= scales; k++) {
+                    int size = 1 << k;
+                    int half = size >> 1;
+                    double e = 0;
+                    if (x - half >= 0 && x + half < width) {
+                        double left = boxMean(x - size, y - half, x, y + half);
+                        double right = boxMean(x, y - half, x + size, y + half);
+                        e = Math.abs(right - left);
+                    }
+                    if (y - half >= 0 && y + half < height) {
+                        double top = boxMean(x - half, y - size, x + half, y);
+                        double bottom = boxMean(x - half, y, x + half, y + size);
+                        e = Math.max(e, Math.abs(bottom - top));
+                    }
+                    if (e > best) {
+                        best = e;
+                        bestSize = size;
+                    }
+                }
+                sum += bestSize;
+            }
+        }
+
+        return sum / (width * height);
+    }
+
+    /**
+     * Sharpness of the histogram of edge directions around its peak: one minus the second moment of the
+     * circular distance to the peak, scaled to [0, 1]. Directions come from the Prewitt differences of the
+     * interior pixels, and only pixels with a gradient magnitude of at least the mean magnitude are binned,
+     * which makes the threshold independent of the intensity range.
+     */
+    private double computeDirectionality() {
+        if (width < 3 || height < 3)
+            return Double.NaN;
+
+        // first pass for the mean magnitude, second pass to bin the directions of the strong edges
+        double meanMagnitude = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            double magnitudes = 0;
+            Arrays.fill(directions, 0);
+            for (int y = 1; y < height - 1; y++) {
+                for (int x = 1; x < width - 1; x++) {
+                    double dh = boxSum(x + 1, y - 1, x + 2, y + 2) - boxSum(x - 1, y - 1, x, y + 2);
+                    double dv = boxSum(x - 1, y + 1, x + 2, y + 2) - boxSum(x - 1, y - 1, x + 2, y);
+                    double magnitude = (Math.abs(dh) + Math.abs(dv)) / 2;
+                    if (pass == 0) {
+                        magnitudes += magnitude;
+                    } else if (magnitude > 0 && magnitude >= meanMagnitude) {
+                        // direction in [0, pi)
+                        double theta = Math.atan2(dv, dh);
+                        if (theta < 0)
+                            theta += Math.PI;
+                        int bin = Math.min((int) (theta / Math.PI * DIRECTION_BINS), DIRECTION_BINS - 1);
+                        directions[bin]++;
+                    }
+                }
+            }
+            if (pass == 0)
+                meanMagnitude = magnitudes / ((width - 2) * (height - 2));
+        }
+
+        double total = 0;
+        int peak = 0;
+        for (int b = 0; b < DIRECTION_BINS; b++) {
+            total += directions[b];
+            if (directions[b] > directions[peak])
+                peak = b;
+        }
+        if (total == 0)
+            return 0;
+
+        double spread = 0;
+        for (int b = 0; b < DIRECTION_BINS; b++) {
+            int d = Math.abs(b - peak);
+            d = Math.min(d, DIRECTION_BINS - d);
+            double distance = d * Math.PI / DIRECTION_BINS;
+            spread += distance * distance * directions[b] / total;
+        }
+
+        return 1 - spread / (Math.PI * Math.PI / 4);
+    }
+}
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Zernike basis functions up to a maximum order, sampled on every pixel of a slice of a given size.
+ *
+ * The unit disk is centered on the slice and its radius is half the slice diagonal, so every pixel lies
+ * inside it. For each moment (n, m) with 0 <= m <= n and n - m even, the tables hold the radial polynomial
+ * times cos(m theta) and sin(m theta), premultiplied by the normalization (n + 1) / pi and the area of a pixel
+ * in unit disk coordinates.
+ *
+ * Cells mostly share a handful of crop sizes, so bases are cached per size and order and shared between
+ * threads; they are immutable once built. The cache holds at most 128 MB of tables, as a single basis of
+ * order 20 for a 100x100 slice already takes 19 MB.
+ */
+public class ZernikeBasis {
+
+    private static final long MAX_CACHED_BYTES = 128L << 20;
+    private static final Map<Key, ZernikeBasis> CACHE = new ConcurrentHashMap<>();
+    // size of the tables in the cache, guarded by the cache
+    private static long cachedBytes = 0;
+
+    private static class Key {
+        private final int width;
+        private final int height;
+        private final int maxOrder;
+
+        Key(int width, int height, int maxOrder) {
+            this.width = width;
+            this.height = height;
+            this.maxOrder = maxOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && maxOrder == key.maxOrder;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, height, maxOrder);
+        }
+    }
+
+    private final int width;
+    private final int[] orders;
+    private final int[] repetitions;
+    private final double[][] cos;
+    private final double[][] sin;
+
+    /**
+     * @return basis for slices of the given size, from the cache if it was built before
+     */
+    public static ZernikeBasis get(int width, int height, int maxOrder) {
+        Key key = new Key(width, height, maxOrder);
+        ZernikeBasis basis = CACHE.get(key);
+        if (basis != null)
+            return basis;
+
+        basis = new ZernikeBasis(width, height, maxOrder);
+        long bytes = basis.bytes();
+        if (bytes > MAX_CACHED_BYTES)
+            return basis;
+
+        synchronized (CACHE) {
+            ZernikeBasis cached = CACHE.get(key);
+            if (cached != null)
+                return cached;
+            // unusual sizes would otherwise grow the cache without bound
+            if (cachedBytes + bytes > MAX_CACHED_BYTES) {
+                CACHE.clear();
+                cachedBytes = 0;
+            }
+            CACHE.put(key, basis);
+            cachedBytes += bytes;
+        }
+        return basis;
+    }
+
+    /**
+     * @return the moments (n, m) up to the maximum order, as pairs of order and repetition
+     */
+    public static List<int[]> moments(int maxOrder) {
+        List<int[]> res = new ArrayList<>();
+        for (int n = 0; n <= maxOrder; n++) {
+            for (int m = n % 2; m <= n; m += 2) {
+                res.add(new int[]{n, m});
+            }
+        }
+        return res;
+    }
+
+    private ZernikeBasis(int width, int height, int maxOrder) {
+        this.width = width;
+        List<int[]> moments = moments(maxOrder);
+        orders = new int[moments.size()];
+        repetitions = new int[moments.size()];
+        cos = new double[moments.size()][width * height];
+        sin = new double[moments.size()][width * height];
+
+        double cx = (width - 1) / 2.0;
+        double cy = (height - 1) / 2.0;
+        double radius = Math.max(Math.sqrt(cx * cx + cy * cy), 1);
+        double pixelArea = 1 / (radius * radius);
+
+        for (int k = 0; k < moments.size(); k++) {
+            int n = moments.get(k)[0];
+            int m = moments.get(k)[1];
+            orders[k] = n;
+            repetitions[k] = m;
+            double[] coefficients = radialCoefficients(n, m);
+            double scale = (n + 1) / Math.PI * pixelArea;
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double xn = (x - cx) / radius;
+                    double yn = (y - cy) / radius;
+                    double rho = Math.sqrt(xn * xn + yn * yn);
+                    double theta = Math.atan2(yn, xn);
+
+                    // coefficients[s] belongs to rho^(n - 2s)
+                    double radial = 0;
+                    for (int s = coefficients.length - 1; s >= 0; s--) {
+                        radial += coefficients[s] * Math.pow(rho, n - 2 * s);
+                    }
+
+                    int i = y * width + x;
+                    cos[k][i] = scale * radial * Math.cos(m * theta);
+                    sin[k][i] = scale * radial * Math.sin(m * theta);
+                }
+            }
+        }
+    }
+
+    private static double[] radialCoefficients(int n, int m) {
+        double[] res = new double[(n - m) / 2 + 1];
+        for (int s = 0; s < res.length; s++) {
+            double c = factorial(n - s) / (factorial(s) * factorial((n + m) / 2 - s) * factorial((n - m) / 2 - s));
+            res[s] = s % 2 == 0 ? c : -c;
+        }
+        return res;
+    }
+
+    private static double factorial(int n) {
+        double res = 1;
+        for (int i = 2; i <= n; i++) {
+            res *= i;
+        }
+        return res;
+    }
+
+    /**
+     * @return size of the cosine and sine tables in bytes
+     */
+    private long bytes() {
+        return 2L * Double.BYTES * cos.length * (cos.length == 0 ? 0 : cos[0].length);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return number of moments
+     */
+    public int size() {
+        return orders.length;
+    }
+
+    public int getOrder(int k) {
+        return orders[k];
+    }
+
+    public int getRepetition(int k) {
+        return repetitions[k];
+    }
+
+    /**
+     * @return normalized R(rho) cos(m theta) of moment k for every pixel, row by row
+     */
+    public double[] getCos(int k) {
+        return cos[k];
+    }
+
+    /**
+     * @return normalized R(rho) sin(m theta) of moment k for every pixel, row by row
+     */
+    public double[] getSin(int k) {
+        return sin[k];
+    }
+}
@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import java.util.Arrays;
+
+import static java.lang.Double.NaN;
+
+/**
+ * Zernike moments of the foreground pixels of a channel, up to a maximum order, computed in one projection
+ * pass over a cached {@link ZernikeBasis}.
+ *
+ * Moment (n, m) is Z = sum over the pixels of f(x, y) times the conjugate basis function, so its real part
+ * accumulates the cosine table and its imaginary part the negated sine table. The magnitude is |Z| and the
+ * phase atan2(Im Z, Re Z) in radians. The result arrays are reused between calls.
+ *
+ * These are the zernikeMagnitude_n{n}_m{m} and zernikePhase_n{n}_m{m} features. The normalization over the
+ * pixel area of the unit disk and the phase in radians differ from the ImageJ-ops Zernike features, so the
+ * zernikeMagnitude and zernikePhase features are still computed by the ops.
+ */
+public class ZernikeMoments {
+
+    private final int maxOrder;
+    private double[] real = new double[0];
+    private double[] imag = new double[0];
+    private int[] index;
+
+    public ZernikeMoments(int maxOrder) {
+        this.maxOrder = maxOrder;
+        index = new int[(maxOrder + 1) * (maxOrder + 1)];
+        int k = 0;
+        for (int[] moment : ZernikeBasis.moments(maxOrder)) {
+            index[moment[0] * (maxOrder + 1) + moment[1]] = k++;
+        }
+    }
+
+    /**
+     * Replaces the moments with those of the pixels in the buffer.
+     *
+     * @param buffer foreground pixels of a channel slice
+     */
+    public void compute(ForegroundBuffer buffer) {
+        ZernikeBasis basis = ZernikeBasis.get(buffer.getWidth(), buffer.getHeight(), maxOrder);
+        int count = basis.size();
+        if (real.length < count) {
+            real = new double[count];
+            imag = new double[count];
+        }
+
+        double[] values = buffer.getValues();
+        int[] x = buffer.getX();
+        int[] y = buffer.getY();
+        int width = basis.getWidth();
+        Arrays.fill(real, 0, count, 0);
+        Arrays.fill(imag, 0, count, 0);
+
+        // one pass over the pixels, each pixel is projected on all moments
+        for (int j = 0; j < buffer.size(); j++) {
+            int i = y[j] * width + x[j];
+            double value = values[j];
+            for (int k = 0; k < count; k++) {
+                real[k] += value * basis.getCos(k)[i];
+                imag[k] -= value * basis.getSin(k)[i];
+            }
+        }
+    }
+
+    private int indexOf(int order, int repetition) {
+        if (order > maxOrder || repetition > order || (order - repetition) % 2 != 0)
+            return -1;
+        return index[order * (maxOrder + 1) + repetition];
+    }
+
+    public double getMagnitude(int order, int repetition) {
+        int k = indexOf(order, repetition);
+        return k < 0 ? NaN : Math.hypot(real[k], imag[k]);
+    }
+
+    public double getPhase(int order, int repetition) {
+        int k = indexOf(order, repetition);
+        return k < 0 ? NaN : Math.atan2(imag[k], real[k]);
+    }
+}
@@ -21,6 +21,8 @@
  */
 package be.maximl.output;
 
+import be.maximl.data.Handoff;
+import be.maximl.feature.FeatureSchema;
 import be.maximl.feature.FeatureVectorFactory;
 import com.opencsv.CSVWriter;
 import com.opencsv.CSVWriterBuilder;
@@ -32,15 +34,14 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.concurrent.*;
 
 public class CsvWriter extends FeatureVecWriter {
 
     private ICSVWriter csvWriter;
     private Writer writer;
 
-    public CsvWriter(LogService log, StatusService statusService, CompletionService<FeatureVectorFactory.FeatureVector> completionService, String file) {
-        super(log, statusService, completionService);
+    public CsvWriter(LogService log, StatusService statusService, Handoff<FeatureVectorFactory.FeatureVector> input, FeatureSchema schema, String file) {
+        super(log, statusService, input, schema);
 
         csvWriter = null;
         writer = null;
@@ -57,38 +58,21 @@ public class CsvWriter extends FeatureVecWriter {
     }
 
     @Override
-    public void run() {
+    protected void write() {
 
         try {
             try {
-                Future<FeatureVectorFactory.FeatureVector> vec;
-                while (!Thread.currentThread().isInterrupted()) {
-                    synchronized (completionService) {
-                        vec = completionService.take();
-                        completionService.notify();
-                    }
-
-                    if (handleCount.get() == 0) {
-                        String[] headers = vec.get().getMap().keySet().toArray(new String[0]);
-                        csvWriter.writeNext(headers);
-                    }
-
-                    csvWriter.writeNext(vec.get().getLine());
-
-                    synchronized (handleCount) {
-                        int c = handleCount.getAndIncrement();
-
-                        if (c % 1000 == 0) {
-                            log.info("Written " + c + " vectors.");
-                        }
-
-                        handleCount.notify();
+                FeatureVectorFactory.FeatureVector vec;
+                csvWriter.writeNext(schema.getHeader());
+                while ((vec = input.take()) != null) {
+                    csvWriter.writeNext(vec.getLine());
+
+                    int c = handleCount.getAndIncrement();
+                    if (c % 1000 == 0) {
+                        log.info("Written " + c + " vectors.");
                     }
                 }
 
-            } catch (ExecutionException e) {
-                log.error("Exception while computing a feature vector.");
-                e.printStackTrace();
             } catch (InterruptedException e) {
                 log.error("Interrupted while waiting");
             } finally {
@@ -21,27 +21,45 @@
  */
 package be.maximl.output;
 
+import be.maximl.data.Handoff;
+import be.maximl.feature.FeatureSchema;
 import be.maximl.feature.FeatureVectorFactory;
 import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
 
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Last stage of the pipeline: writes feature vectors until the input handoff is closed. When writing stops,
+ * normally or not, the input is cancelled so the compute stage never blocks on vectors nobody takes.
+ */
 public abstract class FeatureVecWriter extends Thread {
     protected final LogService log;
     protected final AtomicInteger handleCount = new AtomicInteger();
     protected final StatusService statusService;
-    protected final CompletionService<FeatureVectorFactory.FeatureVector> completionService;
+    protected final Handoff<FeatureVectorFactory.FeatureVector> input;
+    protected final FeatureSchema schema;
 
-    public FeatureVecWriter(LogService log, StatusService statusService, CompletionService<FeatureVectorFactory.FeatureVector> completionService) {
+    public FeatureVecWriter(LogService log, StatusService statusService, Handoff<FeatureVectorFactory.FeatureVector> input, FeatureSchema schema) {
         this.log = log;
         this.statusService = statusService;
-        this.completionService = completionService;
+        this.input = input;
+        this.schema = schema;
     }
 
     @Override
-    public abstract void run();
+    public final void run() {
+        try {
+            write();
+        } finally {
+            input.cancel();
+        }
+    }
+
+    /**
+     * Writes the vectors of the input handoff.
+     */
+    protected abstract void write();
 
     public AtomicInteger getHandled() {
         return handleCount;
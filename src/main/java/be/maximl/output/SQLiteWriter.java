@@ -21,25 +21,21 @@
  */
 package be.maximl.output;
 
+import be.maximl.data.Handoff;
+import be.maximl.feature.FeatureSchema;
 import be.maximl.feature.FeatureVectorFactory;
-import org.hibernate.type.descriptor.sql.JdbcTypeJavaClassMappings;
 import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
 
 import java.sql.*;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 public class SQLiteWriter extends FeatureVecWriter {
 
     private Connection connection;
     private PreparedStatement rowStatement;
 
-    public SQLiteWriter(LogService log, StatusService statusService, CompletionService<FeatureVectorFactory.FeatureVector> completionService, String file) {
-        super(log, statusService, completionService);
+    public SQLiteWriter(LogService log, StatusService statusService, Handoff<FeatureVectorFactory.FeatureVector> input, FeatureSchema schema, String file) {
+        super(log, statusService, input, schema);
 
         connection = null;
 
@@ -53,21 +49,16 @@ public class SQLiteWriter extends FeatureVecWriter {
         }
     }
 
-    private void setupTable(FeatureVectorFactory.FeatureVector vec) throws SQLException {
-
-        StringBuilder sql = new StringBuilder("CREATE TABLE ").append("data").append(" (");
-
-        Iterator<Map.Entry<String, Object>> it = vec.getMap().entrySet().iterator();
-        while(it.hasNext()) {
-            Map.Entry<String, Object> entry = it.next();
-
-            sql.append(entry.getKey());
-            sql.append(" ");
+    private static String quote(String column) {
+        return "\"" + column + "\"";
+    }
 
-            int type = JdbcTypeJavaClassMappings.INSTANCE.determineJdbcTypeCodeForJavaClass(entry.getValue().getClass());
-            sql.append(JDBCType.values()[type]);
+    private void setupTable() throws SQLException {
 
-            sql.append(",");
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append("data").append(" (");
+        sql.append("meta_id INTEGER,meta_file VARCHAR,meta_directory VARCHAR,");
+        for (String column : schema.getColumns()) {
+            sql.append(quote(column)).append(" DOUBLE,");
         }
         sql.append("CONSTRAINT PK_data PRIMARY KEY (meta_id,meta_file)");
         sql.append(")");
@@ -77,15 +68,16 @@ public class SQLiteWriter extends FeatureVecWriter {
         statement.close();
     }
 
-    private PreparedStatement prepareRowStatement(FeatureVectorFactory.FeatureVector vec) throws SQLException {
+    private PreparedStatement prepareRowStatement() throws SQLException {
         StringBuilder sql = new StringBuilder("INSERT INTO ").append("data").append(" (");
         StringBuilder placeholders = new StringBuilder();
 
-        for (Iterator<String> iter = vec.getMap().keySet().iterator(); iter.hasNext();) {
-            sql.append(iter.next());
+        String[] header = schema.getHeader();
+        for (int i = 0; i < header.length; i++) {
+            sql.append(quote(header[i]));
             placeholders.append("?");
 
-            if (iter.hasNext()) {
+            if (i < header.length - 1) {
                 sql.append(",");
                 placeholders.append(",");
             }
@@ -96,30 +88,25 @@ public class SQLiteWriter extends FeatureVecWriter {
     }
 
     @Override
-    public void run() {
+    protected void write() {
 
         try {
             try {
-                Future<FeatureVectorFactory.FeatureVector> vec;
+                FeatureVectorFactory.FeatureVector v;
                 int internalCounter = 0;
                 int delta = 1000;
                 long start = System.currentTimeMillis();
-                while (!Thread.currentThread().isInterrupted()) {
-                    synchronized (completionService) {
-                        vec = completionService.take();
-                        completionService.notify();
-                    }
-
-                    if (internalCounter == 0) {
-                        // initialize SQLite table
-                        setupTable(vec.get());
-                        rowStatement = prepareRowStatement(vec.get());
-                    }
 
+                setupTable();
+                rowStatement = prepareRowStatement();
+                while ((v = input.take()) != null) {
                     rowStatement.clearParameters();
-                    int i = 1;
-                    for (Map.Entry<String, Object> entry: vec.get().getMap().entrySet()) {
-                        rowStatement.setObject(i++, entry.getValue());
+                    rowStatement.setInt(1, v.getId());
+                    rowStatement.setString(2, v.getFile());
+                    rowStatement.setString(3, v.getDirectory());
+                    int i = FeatureSchema.META_COLUMNS.length + 1;
+                    for (double value : v.getValues()) {
+                        rowStatement.setDouble(i++, value);
                     }
                     rowStatement.addBatch();
                     internalCounter++;
@@ -128,20 +115,14 @@ public class SQLiteWriter extends FeatureVecWriter {
                         rowStatement.executeBatch();
                     }
 
-                    synchronized (handleCount) {
-                        int c = handleCount.incrementAndGet();
-                        handleCount.notify();
-                        if (c % 500 == 0) {
-                            log.info("Submmited " + c + " vectors to database.");
-                            log.info("Average time per vector " + (float)((System.currentTimeMillis() - start) / 500. / 1000.));
-                            start = System.currentTimeMillis();
-                        }
+                    int c = handleCount.incrementAndGet();
+                    if (c % 500 == 0) {
+                        log.info("Submmited " + c + " vectors to database.");
+                        log.info("Average time per vector " + (float)((System.currentTimeMillis() - start) / 500. / 1000.));
+                        start = System.currentTimeMillis();
                     }
                 }
 
-            } catch (ExecutionException e) {
-                log.error("Exception while computing a feature vector.");
-                e.printStackTrace();
             } catch (InterruptedException e) {
                 log.error("Interrupted while waiting");
             } finally {
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.data.loaders.imp;
+
+import be.maximl.data.Image;
+import be.maximl.data.loaders.Loader;
+import io.scif.SCIFIO;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.NativeBoolType;
+import net.imglib2.type.numeric.RealType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the images of {@link NativeCIFLoader} with those SCIFIO decodes through {@link CIFLoader}.
+ *
+ * The fixture is a CIF file, src/test/resources/fixture.cif or the file in the cif.fixture system property.
+ * The test is skipped without one.
+ */
+public class NativeCIFLoaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LogService log = new StderrLogService();
+    private final List<Long> channels = Collections.singletonList(0L);
+    private SCIFIO scifio;
+    private File fixture;
+
+    @Before
+    public void setUp() {
+        fixture = new File(System.getProperty("cif.fixture", "src/test/resources/fixture.cif"));
+        assumeTrue("No CIF fixture at " + fixture, fixture.isFile());
+        scifio = new SCIFIO();
+    }
+
+    @After
+    public void tearDown() {
+        if (scifio != null)
+            scifio.getContext().dispose();
+    }
+
+    /**
+     * @return a copy of the fixture in a directory of its own, so every loader writes its own index
+     */
+    private File copy(String name) throws IOException {
+        File dir = folder.newFolder(name);
+        File file = new File(dir, fixture.getName());
+        Files.copy(fixture.toPath(), file.toPath());
+        return file;
+    }
+
+    /**
+     * @return per image, its plane values followed by its mask
+     */
+    private static <T extends NativeType<T> & RealType<T>> List<double[]> read(Loader<T> loader) {
+        List<double[]> res = new ArrayList<>();
+        while (loader.hasNext()) {
+            Image<T> image = loader.next();
+            List<Double> values = new ArrayList<>();
+            for (T t : image.getImg()) {
+                values.add(t.getRealDouble());
+            }
+            for (NativeBoolType t : image.getMaskImg()) {
+                values.add(t.get() ? 1. : 0.);
+            }
+            res.add(values.stream().mapToDouble(d -> d).toArray());
+            image.release();
+        }
+        return res;
+    }
+
+    private static void assertSameImages(List<double[]> expected, List<double[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("image " + i, expected.get(i), actual.get(i), 0);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void decodesLikeSCIFIO() throws IOException {
+        File scifioFile = copy("scifio");
+        File nativeFile = copy("native");
+
+        List<double[]> expected = read(new CIFLoader(log, -1, channels, Collections.singletonList(scifioFile).iterator(), scifio));
+        assertFalse(expected.isEmpty());
+
+        // the first run indexes the file while opening it, the second one opens it from the saved index
+        List<double[]> indexed = read(new NativeCIFLoader(log, -1, channels, Collections.singletonList(nativeFile).iterator(), scifio));
+        assertSameImages(expected, indexed);
+        List<double[]> loaded = read(new NativeCIFLoader(log, -1, channels, Collections.singletonList(nativeFile).iterator(), scifio));
+        assertSameImages(expected, loaded);
+    }
+}
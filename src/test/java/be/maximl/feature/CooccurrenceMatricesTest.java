@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imagej.ops.image.cooccurrenceMatrix.MatrixOrientation2D;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CooccurrenceMatricesTest {
+
+    private static CooccurrenceMatrices matricesOf(short[] pixels, int width, int height, int nrGreyLevels) {
+        Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(pixels, width, height);
+        ForegroundBuffer buffer = new ForegroundBuffer();
+        buffer.fill(img);
+
+        CooccurrenceMatrices matrices = new CooccurrenceMatrices(nrGreyLevels, 1);
+        matrices.setInput(buffer);
+        return matrices;
+    }
+
+    @Test
+    public void countsBothNeighbours() {
+        double[][] matrix = matricesOf(new short[] {0, 1, 2}, 3, 1, 3).getMatrix(MatrixOrientation2D.HORIZONTAL);
+
+        double[][] expected = {
+                {0, .25, 0},
+                {.25, 0, .25},
+                {0, .25, 0}
+        };
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                assertEquals(expected[a][b], matrix[a][b], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void matricesAreSymmetric() {
+        int width = 23;
+        int height = 17;
+        short[] pixels = new short[width * height];
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) random.nextInt(4096);
+        }
+
+        CooccurrenceMatrices matrices = matricesOf(pixels, width, height, 8);
+        for (MatrixOrientation2D orientation : MatrixOrientation2D.values()) {
+            double[][] matrix = matrices.getMatrix(orientation);
+            double total = 0;
+            for (int a = 0; a < matrix.length; a++) {
+                for (int b = 0; b < matrix.length; b++) {
+                    assertEquals(orientation + " at " + a + "," + b, matrix[a][b], matrix[b][a], 0);
+                    total += matrix[a][b];
+                }
+            }
+            assertEquals(1, total, 1e-9);
+        }
+    }
+}
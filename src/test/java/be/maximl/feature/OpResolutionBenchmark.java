@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * SCIP: Single-cell image processing
+ * %%
+ * Copyright (C) 2020 Maxim Lippeveld
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package be.maximl.feature;
+
+import net.imagej.ImageJ;
+import net.imagej.ops.Op;
+import net.imagej.ops.OpService;
+import net.imagej.ops.Ops;
+import net.imagej.ops.special.computer.Computers;
+import net.imagej.ops.special.computer.UnaryComputerOp;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.geom.real.Polygon2D;
+import net.imglib2.type.logic.NativeBoolType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the per-call overhead of running ops through the OpService, which matches the op on every call,
+ * against calling an op that was matched once.
+ *
+ * The contour op is run through {@link CachedFunctionOp}, as the features do. The other ops are the ones the
+ * features ran before they were computed natively, matched once with {@link Computers#unary} and writing into
+ * a reused output.
+ *
+ * The inputs mimic a single cell from a CIF file: a 50x50 16-bit plane and a disk-shaped mask.
+ * Usage: java be.maximl.feature.OpResolutionBenchmark (from the test classpath) [iterations]
+ */
+public class OpResolutionBenchmark {
+
+    private interface Call {
+        void run();
+    }
+
+    private static double microsPerCall(Call call, int iterations) {
+        for (int i = 0; i < iterations / 10; i++) {
+            call.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+        return (System.nanoTime() - start) / 1000. / iterations;
+    }
+
+    private static <I> double[] compare(OpService opService, Class<? extends Op> opType, I input, int iterations) {
+        UnaryComputerOp<I, DoubleType> op = Computers.unary(opService, opType, DoubleType.class, input);
+        DoubleType output = new DoubleType();
+        return new double[] {
+                microsPerCall(() -> opService.run(opType, input), iterations),
+                microsPerCall(() -> op.compute(input, output), iterations)
+        };
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        ImageJ ij = new ImageJ();
+        OpService opService = ij.op();
+
+        Img<NativeBoolType> mask = new ArrayImgFactory<>(new NativeBoolType()).create(50, 50);
+        Cursor<NativeBoolType> maskCursor = mask.localizingCursor();
+        while (maskCursor.hasNext()) {
+            maskCursor.fwd();
+            double dx = maskCursor.getDoublePosition(0) - 25;
+            double dy = maskCursor.getDoublePosition(1) - 25;
+            maskCursor.get().set(dx * dx + dy * dy < 18 * 18);
+        }
+        Polygon2D polygon = opService.geom().contour(mask, false);
+
+        Img<UnsignedShortType> plane = ArrayImgs.unsignedShorts(50, 50);
+        Random random = new Random(42);
+        for (UnsignedShortType t : plane) {
+            t.set(random.nextInt(4096));
+        }
+
+        Map<String, double[]> timings = new LinkedHashMap<>();
+
+        CachedFunctionOp<RandomAccessibleInterval<NativeBoolType>, Polygon2D> contourOp =
+                new CachedFunctionOp<>(opService, Ops.Geometric.Contour.class, Polygon2D.class, false);
+        timings.put("contour", new double[] {
+                microsPerCall(() -> opService.geom().contour(mask, false), iterations),
+                microsPerCall(() -> contourOp.calculate(mask), iterations)
+        });
+
+        timings.put("eccentricity", compare(opService, Ops.Geometric.Eccentricity.class, polygon, iterations));
+        timings.put("circularity", compare(opService, Ops.Geometric.Circularity.class, polygon, iterations));
+        timings.put("roundness", compare(opService, Ops.Geometric.Roundness.class, polygon, iterations));
+        timings.put("size", compare(opService, Ops.Geometric.Size.class, polygon, iterations));
+        timings.put("majorAxis", compare(opService, Ops.Geometric.MajorAxis.class, polygon, iterations));
+        timings.put("median", compare(opService, Ops.Stats.Median.class, plane, iterations));
+        timings.put("tamuraContrast", compare(opService, Ops.Tamura.Contrast.class, plane, iterations));
+
+        double totalOpService = 0;
+        double totalResolved = 0;
+        System.out.println(String.format("%-16s %14s %14s", "op", "OpService (us)", "resolved (us)"));
+        for (Map.Entry<String, double[]> entry : timings.entrySet()) {
+            double[] t = entry.getValue();
+            System.out.println(String.format("%-16s %14.2f %14.2f", entry.getKey(), t[0], t[1]));
+            totalOpService += t[0];
+            totalResolved += t[1];
+        }
+
+        System.out.println(String.format(
+                "Per channel of a cell: %.2f us through the OpService, %.2f us with resolved ops (%.2f us overhead removed).",
+                totalOpService, totalResolved, totalOpService - totalResolved));
+
+        ij.getContext().dispose();
+    }
+}